@@ -0,0 +1,112 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.servlet.ServletContext;
+
+/**
+ * Remembers the last modified time of each page's class file, so the file is only checked once per class.
+ *
+ * <p>By default, the times are kept until the application is stopped, which matches the usual redeployment of
+ * classes with an application restart.  When {@link WebPage#CLASS_LAST_MODIFIED_WATCH_INIT_PARAM} is enabled,
+ * <code>/WEB-INF/classes</code> is tracked by {@link DirectoryLastModified} and the times are forgotten whenever
+ * any class changes.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class ClassLastModified {
+
+  private static final ConcurrentMap<ServletContext, ClassLastModified> instances = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the class last modified times for the given application.
+   */
+  static ClassLastModified getInstance(ServletContext servletContext) {
+    return instances.computeIfAbsent(servletContext, ClassLastModified::new);
+  }
+
+  /**
+   * Releases the class last modified times for the given application.
+   */
+  static void destroy(ServletContext servletContext) {
+    instances.remove(servletContext);
+  }
+
+  private final String classesDir;
+  private final boolean watch;
+  private final ConcurrentMap<Class<?>, Long> lastModifieds = new ConcurrentHashMap<>();
+
+  private volatile long classesLastModified;
+
+  private ClassLastModified(ServletContext servletContext) {
+    String dir = servletContext.getRealPath("/WEB-INF/classes");
+    this.classesDir = (dir != null && !dir.isEmpty()) ? dir : null;
+    this.watch =
+        classesDir != null
+            && Boolean.parseBoolean(servletContext.getInitParameter(WebPage.CLASS_LAST_MODIFIED_WATCH_INIT_PARAM));
+    if (watch) {
+      classesLastModified = DirectoryLastModified.getInstance(new File(classesDir)).getLastModified();
+    }
+  }
+
+  /**
+   * Gets the last modified time of the given class file.  If the class file is
+   * unavailable, it defaults to the time the servlets were loaded.
+   *
+   * @see  WebPage#getUptime()
+   */
+  long getLastModified(Class<?> clazz) {
+    if (watch) {
+      long current = DirectoryLastModified.getInstance(new File(classesDir)).getLastModified();
+      if (current != classesLastModified) {
+        synchronized (lastModifieds) {
+          if (current != classesLastModified) {
+            // Classes changed, forget all times
+            lastModifieds.clear();
+            classesLastModified = current;
+          }
+        }
+      }
+    }
+    Long lastModified = lastModifieds.get(clazz);
+    if (lastModified == null) {
+      lastModified = lastModifieds.computeIfAbsent(clazz, this::readLastModified);
+    }
+    return lastModified;
+  }
+
+  private long readLastModified(Class<?> clazz) {
+    if (classesDir != null) {
+      // Try to get from the class file
+      long lastMod = new File(classesDir, clazz.getName().replace('.', File.separatorChar) + ".class").lastModified();
+      if (lastMod != 0 && lastMod != -1) {
+        return lastMod;
+      }
+    }
+    return WebPage.getUptime();
+  }
+}
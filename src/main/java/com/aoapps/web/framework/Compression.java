@@ -0,0 +1,372 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Negotiates <code>gzip</code> compression of page output with the client.
+ * Compression is disabled unless {@link WebPage#COMPRESSION_LEVEL_INIT_PARAM} is set.
+ *
+ * <p>Only <code>gzip</code> is supported, since the Java platform does not provide a Brotli encoder.</p>
+ *
+ * @see  WebPage#COMPRESSION_LEVEL_INIT_PARAM
+ * @see  WebPage#COMPRESSION_MIN_BYTES_INIT_PARAM
+ *
+ * @author  AO Industries, Inc.
+ */
+final class Compression {
+
+  private static final Logger logger = Logger.getLogger(Compression.class.getName());
+
+  static final String GZIP = "gzip";
+
+  private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  private static final String VARY_HEADER = "Vary";
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+
+  /**
+   * The default minimum number of bytes before output is compressed.
+   */
+  private static final int DEFAULT_MIN_BYTES = 1024;
+
+  private static final ConcurrentMap<ServletContext, Compression> instances = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the compression settings for the given application.
+   */
+  static Compression getInstance(ServletContext servletContext) {
+    return instances.computeIfAbsent(servletContext, Compression::new);
+  }
+
+  /**
+   * Releases the compression settings for the given application.
+   */
+  static void destroy(ServletContext servletContext) {
+    instances.remove(servletContext);
+  }
+
+  private final int level;
+  private final int minBytes;
+
+  private Compression(ServletContext servletContext) {
+    this.level = getIntParameter(servletContext, WebPage.COMPRESSION_LEVEL_INIT_PARAM, 0, 0, Deflater.BEST_COMPRESSION);
+    this.minBytes = getIntParameter(servletContext, WebPage.COMPRESSION_MIN_BYTES_INIT_PARAM, DEFAULT_MIN_BYTES, 0, Integer.MAX_VALUE);
+  }
+
+  private static int getIntParameter(ServletContext servletContext, String name, int defaultValue, int min, int max) {
+    String param = servletContext.getInitParameter(name);
+    if (param != null && !(param = param.trim()).isEmpty()) {
+      try {
+        int value = Integer.parseInt(param);
+        if (value >= min && value <= max) {
+          return value;
+        }
+        logger.log(Level.WARNING, "{0} out of range {1}..{2}, using default: {3}", new Object[]{name, min, max, param});
+      } catch (NumberFormatException e) {
+        logger.log(Level.WARNING, "Invalid " + name + ", using default: " + param, e);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Checks if compression is enabled.
+   */
+  boolean isEnabled() {
+    return level > 0;
+  }
+
+  /**
+   * Checks if the client accepts <code>gzip</code>.  Adds <code>Vary: Accept-Encoding</code> to the response
+   * when compression is enabled, since the response then depends on the request header.
+   */
+  boolean isAccepted(HttpServletRequest req, HttpServletResponse resp) {
+    if (!isEnabled()) {
+      return false;
+    }
+    if (!resp.containsHeader(VARY_HEADER)) {
+      resp.setHeader(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+    }
+    String acceptEncoding = req.getHeader(ACCEPT_ENCODING_HEADER);
+    if (acceptEncoding == null) {
+      return false;
+    }
+    boolean wildcard = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String name = coding;
+      float quality = 1;
+      int semi = coding.indexOf(';');
+      if (semi != -1) {
+        name = coding.substring(0, semi);
+        String params = coding.substring(semi + 1).trim();
+        if (params.startsWith("q=") || params.startsWith("Q=")) {
+          try {
+            quality = Float.parseFloat(params.substring(2).trim());
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      name = name.trim().toLowerCase(Locale.ROOT);
+      if (name.equals(GZIP) || name.equals("x-gzip")) {
+        return quality > 0;
+      }
+      if (name.equals("*")) {
+        wildcard = quality > 0;
+      }
+    }
+    return wildcard;
+  }
+
+  /**
+   * Checks if content of the given length should be sent compressed.
+   *
+   * @see  #isAccepted(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  boolean isCompressed(HttpServletRequest req, HttpServletResponse resp, long length) {
+    return isAccepted(req, resp) && length >= minBytes;
+  }
+
+  /**
+   * Compresses the given content in full, for content that is cached in compressed form.
+   */
+  byte[] compress(byte[] content) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 4 + 64);
+    try (GZIPOutputStream gzip = new LevelGZIPOutputStream(buffer, level, false)) {
+      gzip.write(content);
+    } catch (IOException e) {
+      throw new AssertionError("ByteArrayOutputStream does not throw IOException", e);
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Gets a stream that compresses to the given stream, closing it when closed.
+   */
+  OutputStream compress(OutputStream out) throws IOException {
+    return new LevelGZIPOutputStream(out, level, false);
+  }
+
+  /**
+   * Sets the <code>Content-Encoding</code> for compressed content.
+   */
+  static void setContentEncoding(HttpServletResponse resp) {
+    resp.setHeader(CONTENT_ENCODING_HEADER, GZIP);
+  }
+
+  /**
+   * Gets a stream that compresses to the response once at least the minimum number of bytes are written.
+   * The stream must be {@linkplain CompressingOutputStream#finish() finished} once the response is complete.
+   */
+  CompressingOutputStream getOutputStream(HttpServletResponse resp) {
+    return new CompressingOutputStream(resp);
+  }
+
+  /**
+   * A {@link GZIPOutputStream} with a configurable compression level.
+   */
+  private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+    private LevelGZIPOutputStream(OutputStream out, int level, boolean syncFlush) throws IOException {
+      super(out, 8192, syncFlush);
+      def.setLevel(level);
+    }
+
+    /**
+     * Releases the native memory of the deflater without writing or closing the underlying stream,
+     * for output that is discarded.
+     */
+    private void end() {
+      def.end();
+    }
+  }
+
+  /**
+   * Buffers output until the minimum size is reached, then compresses the remaining output to the response.
+   * Output that never reaches the minimum size is sent uncompressed.  A {@linkplain #flush() flush} before the
+   * minimum size sends the response uncompressed, since the encoding must be decided before the response is
+   * committed.
+   */
+  final class CompressingOutputStream extends OutputStream {
+
+    private final HttpServletResponse resp;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream out;
+    private Writer writer;
+    private boolean finishing;
+    private boolean finished;
+
+    private CompressingOutputStream(HttpServletResponse resp) {
+      this.resp = resp;
+    }
+
+    /**
+     * Sets the writer that encodes into this stream, flushed before finishing.
+     */
+    void setWriter(Writer writer) {
+      this.writer = writer;
+    }
+
+    /**
+     * Discards any output not yet sent, like {@link HttpServletResponse#resetBuffer()}.
+     * Once compression has started, the new output continues to be compressed under the same encoding.
+     *
+     * @throws  IllegalStateException  when the response is already committed or finished
+     */
+    void reset() throws IOException {
+      if (finished || (out != null && resp.isCommitted())) {
+        throw new IllegalStateException("Response already committed");
+      }
+      if (out instanceof LevelGZIPOutputStream) {
+        // Content-Encoding already set, start a new compressed stream in place of the discarded one
+        resp.resetBuffer();
+        ((LevelGZIPOutputStream) out).end();
+        out = new LevelGZIPOutputStream(resp.getOutputStream(), level, true);
+      } else if (out != null) {
+        // Sent uncompressed without a Content-Length, go back to buffering
+        resp.resetBuffer();
+        out = null;
+        buffer = new ByteArrayOutputStream();
+      } else {
+        buffer.reset();
+      }
+      writer = null;
+    }
+
+    /**
+     * Clears any compressed output and its Content-Encoding after a failed request, so an error page sent by the
+     * container is not labelled as compressed.  Nothing can be cleared once the response is committed.
+     */
+    void abort() {
+      if (out instanceof LevelGZIPOutputStream) {
+        if (!resp.isCommitted()) {
+          resp.reset();
+        }
+        ((LevelGZIPOutputStream) out).end();
+      }
+      out = null;
+      buffer = null;
+      writer = null;
+      finished = true;
+    }
+
+    private void startCompression() throws IOException {
+      setContentEncoding(resp);
+      resp.setContentLengthLong(-1);
+      out = new LevelGZIPOutputStream(resp.getOutputStream(), level, true);
+      buffer.writeTo(out);
+      buffer = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (out == null) {
+        buffer.write(b);
+        if (buffer.size() >= minBytes) {
+          startCompression();
+        }
+      } else {
+        out.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (out == null) {
+        buffer.write(b, off, len);
+        if (buffer.size() >= minBytes) {
+          startCompression();
+        }
+      } else {
+        out.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (!finishing) {
+        if (out == null) {
+          // Below the minimum size: send uncompressed, with the rest of the response following without a length
+          out = resp.getOutputStream();
+          buffer.writeTo(out);
+          buffer = null;
+        }
+        out.flush();
+      }
+    }
+
+    /**
+     * Completes the response, sending any buffered output uncompressed when below the minimum size.
+     */
+    void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      if (writer != null) {
+        // Flushes the writer's encoded characters without flushing this stream
+        finishing = true;
+        try {
+          writer.flush();
+        } finally {
+          finishing = false;
+        }
+      }
+      if (out == null) {
+        resp.setContentLength(buffer.size());
+        buffer.writeTo(resp.getOutputStream());
+        buffer = null;
+        // Further writes go directly to the response
+        out = resp.getOutputStream();
+      } else if (out instanceof LevelGZIPOutputStream) {
+        LevelGZIPOutputStream gzip = (LevelGZIPOutputStream) out;
+        gzip.finish();
+        // The response stream is closed by the container, not through this stream
+        gzip.end();
+      }
+      finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      finish();
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * Caches the content of {@link FilePage} files, bounded by total size with
+ * least-recently-used eviction.  Entries are keyed by file and reloaded when the
+ * file's last modified time changes.
+ *
+ * <p>The bytes of the file are cached, to be written directly to the response stream.  Pages written through
+ * the response writer use the text decoded from the bytes, which is cached along with them once first used.</p>
+ *
+ * @see  WebPage#CONTENT_CACHE_MAX_BYTES_INIT_PARAM
+ *
+ * @author  AO Industries, Inc.
+ */
+final class ContentCache {
+
+  private static final Logger logger = Logger.getLogger(ContentCache.class.getName());
+
+  /**
+   * A single file may use at most this fraction of the cache.
+   */
+  private static final int MAX_ENTRY_FRACTION = 4;
+
+  /**
+   * The approximate number of bytes used by each entry, in addition to its content.
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private static final ConcurrentMap<ServletContext, ContentCache> instances = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the cache for the given application.
+   */
+  static ContentCache getInstance(ServletContext servletContext) {
+    return instances.computeIfAbsent(servletContext, ContentCache::new);
+  }
+
+  /**
+   * Releases the cache for the given application.
+   */
+  static void destroy(ServletContext servletContext) {
+    instances.remove(servletContext);
+  }
+
+  private static final class Entry {
+
+    private final long lastModified;
+    private final byte[] bytes;
+    private volatile String text;
+
+    private Entry(long lastModified, byte[] bytes) {
+      this.lastModified = lastModified;
+      this.bytes = bytes;
+    }
+
+    private long size() {
+      String t = text;
+      return ENTRY_OVERHEAD + bytes.length + (t == null ? 0 : 2L * t.length());
+    }
+  }
+
+  private final long maxBytes;
+
+  // All below are guarded by this
+  private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  private ContentCache(ServletContext servletContext) {
+    long max = 0;
+    String param = servletContext.getInitParameter(WebPage.CONTENT_CACHE_MAX_BYTES_INIT_PARAM);
+    if (param != null && !(param = param.trim()).isEmpty()) {
+      try {
+        max = Long.parseLong(param);
+      } catch (NumberFormatException e) {
+        logger.log(Level.WARNING, "Invalid " + WebPage.CONTENT_CACHE_MAX_BYTES_INIT_PARAM + ", cache disabled: " + param, e);
+      }
+    }
+    this.maxBytes = max;
+  }
+
+  /**
+   * Checks if this cache is enabled.
+   */
+  boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Gets the bytes of a file, to be written directly to the response stream.
+   * The file is read when not cached or modified since cached.
+   *
+   * @return  the bytes, which must not be modified, or {@code null} when the cache is disabled or the file is
+   *          missing or too large to be cached
+   */
+  byte[] getBytes(File file) throws IOException {
+    Entry entry = getEntry(file);
+    return (entry == null) ? null : entry.bytes;
+  }
+
+  /**
+   * Gets the content of a file, decoded in the platform default encoding as by
+   * {@link com.aoapps.lang.io.FileUtils#copy(java.io.File, java.io.Writer)}.  Only used when the page is
+   * written through the response writer.
+   *
+   * @return  the content or {@code null} when the cache is disabled or the file is missing or too large to be cached
+   */
+  String getText(File file) throws IOException {
+    Entry entry = getEntry(file);
+    if (entry == null) {
+      return null;
+    }
+    String text = entry.text;
+    if (text == null) {
+      // Concurrent requests may decode more than once, but all cache the same text
+      text = new String(entry.bytes, Charset.defaultCharset());
+      synchronized (this) {
+        if (entry.text == null && entries.get(file.getAbsoluteFile()) == entry) {
+          totalBytes -= entry.size();
+          entry.text = text;
+          totalBytes += entry.size();
+          evict();
+        }
+      }
+    }
+    return text;
+  }
+
+  /**
+   * Gets the entry for a file, reading the file when not cached or modified since cached.
+   */
+  private Entry getEntry(File file) throws IOException {
+    if (!isEnabled()) {
+      return null;
+    }
+    // The time is read before the content, so a file modified while read is read again on the next request
+    long lastModified = file.lastModified();
+    if (lastModified == 0) {
+      return null;
+    }
+    File key = file.getAbsoluteFile();
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.lastModified == lastModified) {
+        return entry;
+      }
+    }
+    long length = file.length();
+    // Leaves room for the decoded text
+    if (length > maxBytes / MAX_ENTRY_FRACTION / 3) {
+      return null;
+    }
+    // Concurrent requests may read the file more than once, but all cache the same content
+    Entry entry = new Entry(lastModified, Files.readAllBytes(file.toPath()));
+    synchronized (this) {
+      Entry old = entries.put(key, entry);
+      if (old != null) {
+        totalBytes -= old.size();
+      }
+      totalBytes += entry.size();
+      evict();
+    }
+    return entry;
+  }
+
+  /**
+   * Evicts least-recently-used entries until within bounds.
+   */
+  private void evict() {
+    assert Thread.holdsLock(this);
+    Iterator<Entry> iter = entries.values().iterator();
+    while (totalBytes > maxBytes && iter.hasNext()) {
+      totalBytes -= iter.next().size();
+      iter.remove();
+    }
+  }
+}
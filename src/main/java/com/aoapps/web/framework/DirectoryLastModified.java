@@ -0,0 +1,510 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the most recent modification time of a directory and everything below it.
+ * The directory is scanned once when first requested, then kept current from file system
+ * events so the time is available without walking the tree.
+ *
+ * <p>All directories share one watch service and thread.  A directory below one already watched
+ * reuses the registrations of its ancestor.</p>
+ *
+ * <p>When a directory cannot be registered, or events are lost, the tree is no longer considered watched
+ * and is scanned at most once every {@link #RESCAN_INTERVAL} milliseconds.  Watching is attempted again
+ * along with a later scan, backing off from {@link #INITIAL_WATCH_RETRY} up to {@link #MAX_WATCH_RETRY}
+ * while it keeps failing.  When the file system cannot be watched at all, the tree is only scanned.</p>
+ *
+ * <p>Unlike a full walk, the time never decreases while watched: deleting a file updates its directory,
+ * but a file replaced with an older time is not noticed until the next full scan.</p>
+ *
+ * @see  WebPage#getLastModifiedRecursive(java.io.File)
+ *
+ * @author  AO Industries, Inc.
+ */
+final class DirectoryLastModified {
+
+  private static final Logger logger = Logger.getLogger(DirectoryLastModified.class.getName());
+
+  /**
+   * The minimum time between scans when the directory is not watched.
+   */
+  static final long RESCAN_INTERVAL = 5L * 1000;
+
+  /**
+   * The time after a tree stops being watched before watching it is attempted again.
+   */
+  static final long INITIAL_WATCH_RETRY = 60L * 1000;
+
+  /**
+   * The maximum time between attempts to watch a tree again.
+   */
+  static final long MAX_WATCH_RETRY = 60L * 60 * 1000;
+
+  private static final ConcurrentMap<Path, DirectoryLastModified> instances = new ConcurrentHashMap<>();
+
+  /**
+   * The registrations with the watch service, by directory, so they may be cancelled when no longer tracked.
+   */
+  private static final ConcurrentMap<Path, WatchKey> watchKeys = new ConcurrentHashMap<>();
+
+  /**
+   * All trackers receiving events, including those still performing their initial scan.
+   */
+  private static final List<DirectoryLastModified> trackers = new CopyOnWriteArrayList<>();
+
+  private static class WatchLock {
+    // Empty lock class to help heap profile
+  }
+
+  private static final WatchLock watchLock = new WatchLock();
+
+  /**
+   * The watch service shared by all trackers, or {@code null} when not yet started or unavailable.
+   */
+  private static WatchService watchService; // Guarded by watchLock
+
+  private static boolean watchUnavailable; // Guarded by watchLock
+
+  /**
+   * Gets the tracker for the given directory, starting to track it when first requested.
+   * Trackers should not be held, since a directory that is removed is tracked anew when next requested.
+   * The initial scan is performed by the first {@link #getLastModified()}, outside of any shared lock.
+   */
+  static DirectoryLastModified getInstance(File directory) {
+    Path root = getRoot(directory);
+    DirectoryLastModified instance = instances.get(root);
+    if (instance == null) {
+      instance = instances.computeIfAbsent(root, DirectoryLastModified::new);
+    }
+    return instance;
+  }
+
+  private static Path getRoot(File directory) {
+    return directory.toPath().toAbsolutePath().normalize();
+  }
+
+  /**
+   * Stops tracking the given directory, cancelling the registrations not needed by any other tracked directory.
+   * Does nothing when not tracked.
+   */
+  static void release(File directory) {
+    DirectoryLastModified released = instances.remove(getRoot(directory));
+    if (released != null) {
+      trackers.remove(released);
+      Iterator<Map.Entry<Path, WatchKey>> iter = watchKeys.entrySet().iterator();
+      while (iter.hasNext()) {
+        Map.Entry<Path, WatchKey> entry = iter.next();
+        Path dir = entry.getKey();
+        if (dir.startsWith(released.root) && !isTracked(dir)) {
+          entry.getValue().cancel();
+          iter.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks if the given directory is within any tracked tree.
+   */
+  private static boolean isTracked(Path dir) {
+    for (DirectoryLastModified tracker : trackers) {
+      if (dir.startsWith(tracker.root)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops tracking all directories.
+   */
+  static void stopAll() {
+    synchronized (watchLock) {
+      if (watchService != null) {
+        try {
+          watchService.close();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, null, e);
+        }
+        watchService = null;
+      }
+      watchUnavailable = false;
+    }
+    instances.clear();
+    trackers.clear();
+    watchKeys.clear();
+  }
+
+  /**
+   * Gets the shared watch service, starting it when first needed.
+   *
+   * @return  the watch service or {@code null} when the file system cannot be watched
+   */
+  private static WatchService getWatchService() {
+    synchronized (watchLock) {
+      if (watchService == null && !watchUnavailable) {
+        try {
+          WatchService ws = FileSystems.getDefault().newWatchService();
+          Thread thread = new Thread(() -> watch(ws), DirectoryLastModified.class.getName());
+          thread.setDaemon(true);
+          thread.start();
+          watchService = ws;
+        } catch (IOException | UnsupportedOperationException e) {
+          logger.log(Level.WARNING, "Unable to watch directories, will scan at most every " + RESCAN_INTERVAL + " ms", e);
+          watchUnavailable = true;
+        }
+      }
+      return watchService;
+    }
+  }
+
+  /**
+   * Checks if an ancestor of the given directory is watched, in which case all its directories are already registered.
+   */
+  private static boolean isWatchedByAncestor(Path root) {
+    for (Path dir = root.getParent(); dir != null; dir = dir.getParent()) {
+      DirectoryLastModified ancestor = instances.get(dir);
+      if (ancestor != null && ancestor.started && ancestor.watched) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final Path root;
+  private volatile boolean started;
+  private volatile boolean watched;
+  private volatile long lastModified;
+  private volatile long lastScan;
+
+  /**
+   * Incremented each time watching fails, so an attempt to watch again can tell whether it fully succeeded.
+   */
+  private final AtomicInteger watchFailures = new AtomicInteger();
+
+  private volatile long watchRetry = INITIAL_WATCH_RETRY;
+  private volatile long nextWatchAttempt;
+
+  /**
+   * Only one thread rescans at a time, others use the time already known.
+   */
+  private final AtomicBoolean scanning = new AtomicBoolean();
+
+  private DirectoryLastModified(Path root) {
+    this.root = root;
+  }
+
+  /**
+   * Performs the initial scan, registering the tree unless already watched by an ancestor.
+   */
+  private void start() {
+    synchronized (this) {
+      if (!started) {
+        // Receive events during the initial scan
+        trackers.add(this);
+        long now = System.currentTimeMillis();
+        lastModified = Math.max(lastModified, watchAndScan());
+        lastScan = now;
+        if (!watched) {
+          nextWatchAttempt = now + INITIAL_WATCH_RETRY;
+        }
+        started = true;
+      }
+    }
+  }
+
+  /**
+   * Scans the tree, registering it with the watch service unless already watched by an ancestor.
+   * The tree is considered watched only when every directory is registered without any failure during the scan.
+   */
+  private long watchAndScan() {
+    int failures = watchFailures.get();
+    boolean ancestorWatched = isWatchedByAncestor(root);
+    WatchService ws = ancestorWatched ? null : getWatchService();
+    long scanned = scan(ws);
+    if ((ancestorWatched || ws != null) && watchFailures.get() == failures) {
+      watched = true;
+      watchRetry = INITIAL_WATCH_RETRY;
+    }
+    return scanned;
+  }
+
+  /**
+   * Gets the most recent modification time of the directory or anything below it.
+   *
+   * @return  the time or {@code 0} when the directory does not exist
+   *
+   * @see  File#lastModified()
+   */
+  long getLastModified() {
+    if (!started) {
+      start();
+    }
+    if (!watched) {
+      long now = System.currentTimeMillis();
+      long sinceScan = now - lastScan;
+      if ((sinceScan >= RESCAN_INTERVAL || sinceScan < 0) && scanning.compareAndSet(false, true)) {
+        try {
+          lastScan = now;
+          if (now >= nextWatchAttempt) {
+            lastModified = watchAndScan();
+            if (watched) {
+              logger.log(Level.INFO, "Watching " + root + " again");
+            } else {
+              // Back off while watching keeps failing
+              long retry = watchRetry;
+              nextWatchAttempt = now + retry;
+              watchRetry = Math.min(retry * 2, MAX_WATCH_RETRY);
+            }
+          } else {
+            lastModified = scan(null);
+          }
+        } finally {
+          scanning.set(false);
+        }
+      }
+    }
+    return lastModified;
+  }
+
+  /**
+   * Stops relying on events for this tree, scanning it instead until watching is attempted again.
+   */
+  private void unwatch(String message, Throwable t) {
+    watchFailures.incrementAndGet();
+    if (watched) {
+      watched = false;
+      nextWatchAttempt = System.currentTimeMillis() + watchRetry;
+      logger.log(Level.WARNING, message + ", will scan " + root + " at most every " + RESCAN_INTERVAL + " ms", t);
+    }
+  }
+
+  /**
+   * Walks the entire tree, finding the most recent modification time.
+   * A directory that cannot be registered no longer considers this tree watched, but the walk continues.
+   *
+   * @param  ws  the watch service to register each directory with or {@code null} to not register
+   */
+  private long scan(WatchService ws) {
+    long[] max = {root.toFile().lastModified()};
+    boolean[] registering = {ws != null};
+    try {
+      Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          if (registering[0]) {
+            try {
+              register(ws, dir);
+            } catch (IOException | ClosedWatchServiceException e) {
+              registering[0] = false;
+              unwatch("Unable to watch " + dir, e);
+            }
+          }
+          max[0] = Math.max(max[0], attrs.lastModifiedTime().toMillis());
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          max[0] = Math.max(max[0], attrs.lastModifiedTime().toMillis());
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          // Removed while scanning, unreadable, or a symbolic link loop
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (NoSuchFileException e) {
+      // Does not exist
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to scan " + root, e);
+    }
+    return max[0];
+  }
+
+  private static void register(WatchService ws, Path dir) throws IOException {
+    WatchKey key = dir.register(
+        ws,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY
+    );
+    watchKeys.put(dir, key);
+  }
+
+  /**
+   * Raises the time of every tracker containing the given path to at least its modification time.
+   * Only called by the watch thread.
+   */
+  private static void update(Path path) {
+    long time = -1;
+    for (DirectoryLastModified tracker : trackers) {
+      if (path.startsWith(tracker.root)) {
+        if (time == -1) {
+          time = path.toFile().lastModified();
+        }
+        if (time > tracker.lastModified) {
+          tracker.lastModified = time;
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops relying on events for every tree containing the given path.
+   */
+  private static void unwatch(Path path, String message, Throwable t) {
+    for (DirectoryLastModified tracker : trackers) {
+      if (path.startsWith(tracker.root)) {
+        tracker.unwatch(message, t);
+      }
+    }
+  }
+
+  /**
+   * Registers a new directory and everything already in it, raising the times of the trackers containing it.
+   */
+  private static void registerTree(WatchService ws, Path dir) {
+    boolean[] registering = {true};
+    try {
+      Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) {
+          if (registering[0]) {
+            try {
+              register(ws, subdir);
+            } catch (IOException e) {
+              registering[0] = false;
+              unwatch(subdir, "Unable to watch " + subdir, e);
+            }
+          }
+          update(subdir);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          update(file);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      unwatch(dir, "Unable to watch " + dir, e);
+    }
+  }
+
+  private static void watch(WatchService ws) {
+    try {
+      while (true) {
+        WatchKey key = ws.take();
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          WatchEvent.Kind<?> kind = event.kind();
+          if (kind == StandardWatchEventKinds.OVERFLOW) {
+            // Events lost, possibly for any directory
+            for (DirectoryLastModified tracker : trackers) {
+              tracker.unwatch("Events lost", null);
+            }
+          } else {
+            Path child = dir.resolve((Path) event.context());
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+              registerTree(ws, child);
+            } else if (kind != StandardWatchEventKinds.ENTRY_DELETE) {
+              update(child);
+            }
+          }
+        }
+        // The directory itself is modified by any create or delete
+        update(dir);
+        if (!key.reset()) {
+          watchKeys.remove(dir, key);
+          // Directory removed, track again when next requested
+          DirectoryLastModified removed = instances.get(dir);
+          if (removed != null && instances.remove(dir, removed)) {
+            trackers.remove(removed);
+            removed.lastModified = 0;
+          }
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      // Normal shutdown
+    } catch (InterruptedException e) {
+      // Restore the interrupted status
+      Thread.currentThread().interrupt();
+    } catch (ThreadDeath td) {
+      throw td;
+    } catch (Throwable t) {
+      logger.log(Level.SEVERE, "Stopped watching directories", t);
+      synchronized (watchLock) {
+        if (watchService == ws) {
+          watchService = null;
+          watchUnavailable = true;
+        }
+      }
+      for (DirectoryLastModified tracker : trackers) {
+        tracker.unwatch("Stopped watching", null);
+      }
+      try {
+        ws.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, null, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Generates and compares HTTP entity tags.
+ *
+ * @author  AO Industries, Inc.
+ */
+final class ETags {
+
+  /** Make no instances. */
+  private ETags() {
+    throw new AssertionError();
+  }
+
+  private static final String WEAK_PREFIX = "W/";
+
+  /**
+   * The number of digest bytes used in content-based entity tags.
+   */
+  private static final int HASH_BYTES = 16;
+
+  /**
+   * Generates a strong entity tag from a hash of the given content.
+   */
+  static String fromContent(byte[] content) {
+    MessageDigest digest = newDigest();
+    digest.update(content);
+    return fromDigest(digest);
+  }
+
+  /**
+   * Gets a new digest for content written in parts, completed by {@link #fromDigest(java.security.MessageDigest)}.
+   */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Required to be supported by all Java platforms
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Generates a strong entity tag from a digest of all the content, as created by {@link #newDigest()}.
+   */
+  static String fromDigest(MessageDigest digest) {
+    byte[] hash = digest.digest();
+    return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, HASH_BYTES)) + '"';
+  }
+
+  /**
+   * Gets the strong entity tag for the given content encoding of the representation with the given entity tag,
+   * since each encoding of the content is a different representation.
+   */
+  static String forContentEncoding(String etag, String contentEncoding) {
+    return etag.substring(0, etag.length() - 1) + '-' + contentEncoding + '"';
+  }
+
+  /**
+   * Checks if an <code>If-None-Match</code> header value contains the given entity tag, using weak comparison.
+   * The wildcard <code>*</code> matches any current representation.
+   */
+  static boolean matches(String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*")) {
+        return true;
+      }
+      if (tag.startsWith(WEAK_PREFIX)) {
+        tag = tag.substring(WEAK_PREFIX.length());
+      }
+      if (tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if an <code>If-Range</code> header value is the given strong entity tag, using strong comparison.
+   * <code>If-Range</code> holds a single entity tag or a date, with no wildcard, and a weak or unrecognized value
+   * never matches.
+   */
+  static boolean matchesIfRange(String header, String etag) {
+    return header != null && header.trim().equals(etag);
+  }
+}
@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,23 +23,47 @@
 
 package com.aoapps.web.framework;
 
+import com.aoapps.html.any.AnyDocument;
 import com.aoapps.html.any.Content;
 import com.aoapps.html.servlet.FlowContent;
 import com.aoapps.lang.io.FileUtils;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Pulls information from a file to be used as the content.
  *
+ * <p>The file content is held in memory while unmodified when enabled by
+ * {@link WebPage#CONTENT_CACHE_MAX_BYTES_INIT_PARAM}.  Large files already in the response
+ * encoding may instead be {@linkplain #isRawPassthrough(com.aoapps.web.framework.WebSiteRequest) sent as-is}.</p>
+ *
  * @author  AO Industries, Inc.
  */
 public abstract class FilePage extends WebPage {
 
   private static final long serialVersionUID = 1L;
 
+  /**
+   * The default response buffer size, large enough to send long files in large chunks.
+   */
+  private static final int RESPONSE_BUFFER_SIZE = 32 * 1024;
+
+  /**
+   * Files are sent in larger chunks than the container default.
+   */
+  @Override
+  protected int getResponseBufferSize(WebSiteRequest req) throws ServletException {
+    return RESPONSE_BUFFER_SIZE;
+  }
+
   @Override
   public <__ extends FlowContent<__>> void doGet(
       WebSiteRequest req,
@@ -47,7 +71,7 @@ public abstract class FilePage extends WebPage {
       WebPageLayout layout,
       __ flow
   ) throws ServletException, IOException {
-    printFile(flow, getFile());
+    printFile(req, flow, getFile());
   }
 
   /**
@@ -64,6 +88,73 @@ public abstract class FilePage extends WebPage {
     }
   }
 
+  /**
+   * Determines if the file is sent to the client byte-for-byte, without being decoded and encoded again.
+   * This may only be enabled when the file is encoded as {@link AnyDocument#ENCODING} and contains no
+   * characters that require escaping where it is printed.  Defaults to {@code false}.
+   *
+   * <p>The response is committed before the file is sent, so errors while sending the file cannot be
+   * reported to the client.</p>
+   */
+  protected boolean isRawPassthrough(WebSiteRequest req) throws ServletException {
+    return false;
+  }
+
+  @Override
+  final boolean isResponseStreamUsed(WebSiteRequest req) throws ServletException {
+    return isRawPassthrough(req);
+  }
+
+  /**
+   * Prints the file.  The file is {@linkplain #isRawPassthrough(com.aoapps.web.framework.WebSiteRequest) sent as-is}
+   * when enabled, and from the content cache when enabled.  Cached bytes are written directly to the response
+   * stream when sent as-is, otherwise the cached text is written.
+   *
+   * @see  #printFile(com.aoapps.html.any.Content, java.io.File)
+   */
+  protected void printFile(WebSiteRequest req, Content<?, ?> content, File file) throws IOException {
+    ContentCache cache = ContentCache.getInstance(getServletContext());
+    // The response stream is also available when compressed, so only used when enabled
+    OutputStream out = isRawPassthrough(req) ? getResponseStream(req) : null;
+    if (out != null) {
+      byte[] bytes = cache.getBytes(file);
+      if (bytes != null) {
+        out.write(bytes);
+      } else {
+        transferFile(file, out);
+      }
+      return;
+    }
+    String cached = cache.getText(file);
+    if (cached != null) {
+      @SuppressWarnings("deprecation")
+      Writer unsafe = content.getRawUnsafe();
+      unsafe.write(cached);
+    } else {
+      printFile(content, file);
+    }
+  }
+
+  /**
+   * Sends the entire file to the given stream, letting the file channel choose the most direct transfer.
+   */
+  private static void transferFile(File file, OutputStream out) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // Not closed, since closing would close the response stream
+      WritableByteChannel target = Channels.newChannel(out);
+      long size = channel.size();
+      long position = 0;
+      while (position < size) {
+        long count = channel.transferTo(position, size - position, target);
+        if (count <= 0) {
+          // Truncated while sending
+          break;
+        }
+        position += count;
+      }
+    }
+  }
+
   @SuppressWarnings("deprecation")
   public static void printFile(Content<?, ?> content, File file) throws IOException {
     FileUtils.copy(file, content.getRawUnsafe());
@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2013, 2015, 2016, 2019, 2020, 2021, 2022, 2023  AO Industries, Inc.
+ * Copyright (C) 2000-2013, 2015, 2016, 2019, 2020, 2021, 2022, 2023, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -25,15 +25,22 @@ package com.aoapps.web.framework;
 
 import static com.aoapps.encoding.TextInXhtmlAttributeEncoder.encodeTextInXhtmlAttribute;
 
+import com.aoapps.html.any.AnyDocument;
 import com.aoapps.html.servlet.ContentEE;
 import com.aoapps.html.servlet.FlowContent;
 import com.aoapps.lang.io.IoUtils;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -43,12 +50,17 @@ import javax.servlet.http.HttpServletResponse;
  * sent to the client, any <code>href="@<i>classname</i>"</code> URL is rewritten and
  * maintains the current <code>WebSiteRequest</code> parameters.
  *
+ * <p>Pages that are the same for all anonymous users may be served from
+ * {@linkplain #isSnapshot(com.aoapps.web.framework.WebSiteRequest) snapshots}.</p>
+ *
  * @author  AO Industries, Inc.
  */
 public abstract class HtmlInputStreamPage extends InputStreamPage {
 
   private static final long serialVersionUID = 1L;
 
+  private static final Logger logger = Logger.getLogger(HtmlInputStreamPage.class.getName());
+
   @Override
   public <__ extends FlowContent<__>> __ printStream(
       WebSiteRequest req,
@@ -61,6 +73,93 @@ public abstract class HtmlInputStreamPage extends InputStreamPage {
     return printHtmlStream(req, resp, layout, content, contentLine, in, "aoLightLink", new AtomicReference<>());
   }
 
+  /**
+   * Whether the content is printed from a cached {@link HtmlTemplate}, by class.
+   * Only used when neither {@link #getInputStream()} nor {@link #printStream(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.ContentEE, com.aoapps.html.servlet.FlowContent, java.io.InputStream)}
+   * is overridden.
+   */
+  private static final ClassValue<Boolean> usesTemplate = new ClassValue<>() {
+    @Override
+    protected Boolean computeValue(Class<?> clazz) {
+      try {
+        return
+            clazz.getMethod("getInputStream").getDeclaringClass() == HtmlInputStreamPage.class
+                && clazz.getMethod(
+                    "printStream",
+                    WebSiteRequest.class,
+                    HttpServletResponse.class,
+                    WebPageLayout.class,
+                    ContentEE.class,
+                    FlowContent.class,
+                    InputStream.class
+                ).getDeclaringClass() == HtmlInputStreamPage.class;
+      } catch (NoSuchMethodException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  /**
+   * Prints the HTML resource from a template parsed once and cached until the resource is modified.
+   * When {@link #getInputStream()} or {@link #printStream(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.ContentEE, com.aoapps.html.servlet.FlowContent, java.io.InputStream)}
+   * is overridden, the stream is printed instead.
+   */
+  @Override
+  protected <__ extends FlowContent<__>> __ printContent(
+      WebSiteRequest req,
+      HttpServletResponse resp,
+      WebPageLayout layout,
+      ContentEE<?> content,
+      __ contentLine
+  ) throws ServletException, IOException {
+    if (usesTemplate.get(getClass())) {
+      HtmlTemplate template = HtmlTemplate.getTemplate(getClass());
+      if (template != null) {
+        return template.print(req, resp, layout, content, contentLine, "aoLightLink", new AtomicReference<>());
+      }
+    }
+    return super.printContent(req, resp, layout, content, contentLine);
+  }
+
+  /**
+   * Determines if the page is rendered once per {@linkplain WebPageLayout#getName() layout} and served from a snapshot
+   * file under the application's temporary directory.  The snapshot is rendered again when the class or
+   * {@linkplain #getHtmlLastModified(java.lang.Class) HTML resource} is modified.  The total size of snapshot files is
+   * configured by {@link #RESPONSE_SNAPSHOTS_MAX_BYTES_INIT_PARAM}.  Defaults to {@code false}.
+   *
+   * <p>Only enable when the output is the same for all anonymous users, as required by
+   * {@link #isResponseCacheable(com.aoapps.web.framework.WebSiteRequest)}.  Logged-in users are always rendered.</p>
+   */
+  protected boolean isSnapshot(WebSiteRequest req) throws ServletException {
+    return false;
+  }
+
+  @Override
+  protected boolean isResponseCacheable(WebSiteRequest req) throws ServletException {
+    return isSnapshot(req) || super.isResponseCacheable(req);
+  }
+
+  @Override
+  final boolean isResponseSnapshot(WebSiteRequest req) throws ServletException {
+    return isSnapshot(req);
+  }
+
+  /**
+   * For {@linkplain #isSnapshot(com.aoapps.web.framework.WebSiteRequest) snapshots}, includes the last modified
+   * time of the class and HTML resource, except for logged-in users.
+   */
+  @Override
+  public long getLastModified(WebSiteRequest req, HttpServletResponse resp) throws ServletException {
+    long lastModified = super.getLastModified(req, resp);
+    if (isSnapshot(req) && (req == null || !req.isLoggedIn())) {
+      lastModified = Math.max(
+          lastModified,
+          Math.max(getClassLastModified(), getHtmlLastModified(getClass()))
+      );
+    }
+    return lastModified;
+  }
+
   /**
    * Gets the file that the text should be read from.
    */
@@ -69,20 +168,127 @@ public abstract class HtmlInputStreamPage extends InputStreamPage {
     return getHtmlInputStream(getClass());
   }
 
+  /**
+   * The HTML resource of a class, found once.
+   */
+  private static final class HtmlResource {
+
+    private static final HtmlResource NOT_FOUND = new HtmlResource(null, null, 0);
+
+    private final URL url;
+
+    /**
+     * The file of a <code>file:</code> resource, which may be modified in place, or {@code null}
+     * when the resource is only replaced by redeploying the application.
+     */
+    private final File file;
+
+    /**
+     * The last modified time of a resource that is not a file.
+     */
+    private final long lastModified;
+
+    private HtmlResource(URL url, File file, long lastModified) {
+      this.url = url;
+      this.file = file;
+      this.lastModified = lastModified;
+    }
+
+    private long getLastModified() {
+      return (file != null) ? file.lastModified() : lastModified;
+    }
+  }
+
+  /**
+   * The HTML resources, by class, including those not found.  The resources of a class are only replaced
+   * along with the class loader, so they are not looked-up again.
+   */
+  private static final ClassValue<HtmlResource> htmlResources = new ClassValue<>() {
+    @Override
+    protected HtmlResource computeValue(Class<?> clazz) {
+      String resource = clazz.getName().replace('.', '/') + ".html";
+      URL url = HtmlInputStreamPage.class.getResource("/" + resource);
+      if (url == null) {
+        // Try ClassLoader for when modules enabled
+        ClassLoader classloader = Thread.currentThread().getContextClassLoader();
+        url = (classloader != null)
+            ? classloader.getResource(resource)
+            : ClassLoader.getSystemResource(resource);
+      }
+      if (url == null) {
+        return HtmlResource.NOT_FOUND;
+      }
+      if ("file".equals(url.getProtocol())) {
+        try {
+          return new HtmlResource(url, new File(url.toURI()), 0);
+        } catch (URISyntaxException | IllegalArgumentException e) {
+          // Fall-through to URLConnection
+        }
+      }
+      long lastModified;
+      try {
+        URLConnection conn = openConnection(url);
+        try (InputStream in = conn.getInputStream()) {
+          lastModified = conn.getLastModified();
+        }
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Unable to get last modified: " + url, e);
+        lastModified = 0;
+      }
+      return new HtmlResource(url, null, lastModified);
+    }
+  };
+
+  /**
+   * Opens a connection to a resource without the shared cache of JAR files, which would keep the JAR file of the
+   * resource open after the application is unloaded.  Closing the stream of the connection closes its JAR file.
+   */
+  private static URLConnection openConnection(URL url) throws IOException {
+    URLConnection conn = url.openConnection();
+    conn.setUseCaches(false);
+    return conn;
+  }
+
+  /**
+   * Opens the stream of an HTML resource, without caching its JAR file.
+   */
+  static InputStream openHtmlStream(URL url) throws IOException {
+    return openConnection(url).getInputStream();
+  }
+
+  /**
+   * Gets the URL of the HTML file with the same name as the provided Class or {@code null} when not found.
+   * The URL is only looked-up once per class.
+   */
+  public static URL getHtmlResource(Class<?> clazz) {
+    return htmlResources.get(clazz).url;
+  }
+
+  /**
+   * Gets the last modified time of the HTML file with the same name as the provided Class or {@code 0} when
+   * not found or unknown.  Files in directories are checked on each call; other resources, such as those
+   * within JAR files, are only checked once.
+   */
+  public static long getHtmlLastModified(Class<?> clazz) {
+    return htmlResources.get(clazz).getLastModified();
+  }
+
   /**
    * Gets the HTML file with the same name as the provided Class or {@code null} when not found.
+   *
+   * @see  #getHtmlResource(java.lang.Class)
    */
   public static InputStream getHtmlInputStream(Class<?> clazz) {
-    String resource = clazz.getName().replace('.', '/') + ".html";
-    InputStream in = HtmlInputStreamPage.class.getResourceAsStream("/" + resource);
-    if (in == null) {
-      // Try ClassLoader for when modules enabled
-      ClassLoader classloader = Thread.currentThread().getContextClassLoader();
-      in = (classloader != null)
-          ? classloader.getResourceAsStream(resource)
-          : ClassLoader.getSystemResourceAsStream(resource);
+    URL url = getHtmlResource(clazz);
+    if (url == null) {
+      return null;
+    }
+    try {
+      return openHtmlStream(url);
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to open: " + url, e);
+      return null;
     }
-    return in;
   }
 
   /**
@@ -120,11 +326,16 @@ public abstract class HtmlInputStreamPage extends InputStreamPage {
       Writer unsafe = contentLine.getRawUnsafe();
       int len = htmlContent.length();
       int pos = 0;
-      while (pos < len) {
-        char ch = htmlContent.charAt(pos++);
-        if (ch == '@') {
-          // TODO: regionsMatches would be faster than repeated substring
-          if ((pos + 4) < len && "URL(".equalsIgnoreCase(htmlContent.substring(pos, pos + 4))) {
+      int at;
+      while ((at = htmlContent.indexOf('@', pos)) != -1) {
+        // Write everything up to the @ in bulk
+        if (at > pos) {
+          unsafe.write(htmlContent, pos, at - pos);
+        }
+        pos = at + 1;
+        int directive = matchDirective(htmlContent, pos, len);
+        switch (directive) {
+          case DIRECTIVE_URL: {
             int endPos = htmlContent.indexOf(')', pos + 4);
             if (endPos == -1) {
               throw new IllegalArgumentException("Unable to find closing parenthesis for @URL( substitution, pos=" + pos);
@@ -132,7 +343,9 @@ public abstract class HtmlInputStreamPage extends InputStreamPage {
             String className = htmlContent.substring(pos + 4, endPos);
             encodeTextInXhtmlAttribute(req.getEncodedUrlForClass(className, resp), unsafe);
             pos = endPos + 1;
-          } else if ((pos + 16) < len && "BEGIN_LIGHT_AREA".equalsIgnoreCase(htmlContent.substring(pos, pos + 16))) {
+            break;
+          }
+          case DIRECTIVE_BEGIN_LIGHT_AREA: {
             if (lightAreaRef.get() != null) {
               throw new IllegalStateException("@BEGIN_LIGHT_AREA may not be nested");
             }
@@ -141,39 +354,133 @@ public abstract class HtmlInputStreamPage extends InputStreamPage {
               throw new AssertionError("lightArea == null");
             }
             lightAreaRef.set(lightArea);
-            pos += 16;
-          } else if ((pos + 14) < len && "END_LIGHT_AREA".equalsIgnoreCase(htmlContent.substring(pos, pos + 14))) {
+            pos += directives[directive].length();
+            break;
+          }
+          case DIRECTIVE_END_LIGHT_AREA: {
             FlowContent<?> lightArea = lightAreaRef.get();
             if (lightArea == null) {
               throw new IllegalStateException("@END_LIGHT_AREA does not have matching @BEGIN_LIGHT_AREA");
             }
             layout.endLightArea(req, resp, lightArea);
             lightAreaRef.set(null);
-            pos += 14;
-          } else if ((pos + 16) < len && "END_CONTENT_LINE".equalsIgnoreCase(htmlContent.substring(pos, pos + 16))) {
+            pos += directives[directive].length();
+            break;
+          }
+          case DIRECTIVE_END_CONTENT_LINE:
             layout.endContentLine(req, resp, contentLine);
-            pos += 16;
-          } else if ((pos + 32) < len && "PRINT_CONTENT_HORIZONTAL_DIVIDER".equalsIgnoreCase(htmlContent.substring(pos, pos + 32))) {
+            pos += directives[directive].length();
+            break;
+          case DIRECTIVE_PRINT_CONTENT_HORIZONTAL_DIVIDER:
             layout.contentHorizontalDivider(req, resp, content);
-            pos += 32;
-          } else if ((pos + 18) < len && "START_CONTENT_LINE".equalsIgnoreCase(htmlContent.substring(pos, pos + 18))) {
+            pos += directives[directive].length();
+            break;
+          case DIRECTIVE_START_CONTENT_LINE:
             contentLine = layout.startContentLine(req, resp, content);
             unsafe = contentLine.getRawUnsafe();
-            pos += 18;
-          } else if ((pos + 10) < len && "LINK_CLASS".equalsIgnoreCase(htmlContent.substring(pos, pos + 10))) {
+            pos += directives[directive].length();
+            break;
+          case DIRECTIVE_LINK_CLASS:
             unsafe.write(linkClass == null ? "aoLightLink" : linkClass);
-            pos += 10;
-          } else {
+            pos += directives[directive].length();
+            break;
+          default:
             unsafe.write('@');
-          }
-        } else {
-          unsafe.write(ch);
         }
       }
+      // Write the remaining content in bulk
+      if (pos < len) {
+        unsafe.write(htmlContent, pos, len - pos);
+      }
     }
     return contentLine;
   }
 
+  private static final int DIRECTIVE_NONE = -1;
+  private static final int DIRECTIVE_URL = 0;
+  private static final int DIRECTIVE_BEGIN_LIGHT_AREA = 1;
+  private static final int DIRECTIVE_END_LIGHT_AREA = 2;
+  private static final int DIRECTIVE_END_CONTENT_LINE = 3;
+  private static final int DIRECTIVE_PRINT_CONTENT_HORIZONTAL_DIVIDER = 4;
+  private static final int DIRECTIVE_START_CONTENT_LINE = 5;
+  private static final int DIRECTIVE_LINK_CLASS = 6;
+
+  /**
+   * The directives of {@link #printHtml(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.ContentEE, com.aoapps.html.servlet.FlowContent, java.lang.String, java.lang.String, java.util.concurrent.atomic.AtomicReference)},
+   * without the leading <code>@</code>, indexed by directive.
+   */
+  private static final String[] directives = {
+      "URL(",
+      "BEGIN_LIGHT_AREA",
+      "END_LIGHT_AREA",
+      "END_CONTENT_LINE",
+      "PRINT_CONTENT_HORIZONTAL_DIVIDER",
+      "START_CONTENT_LINE",
+      "LINK_CLASS"
+  };
+
+  /**
+   * Matches the directive following an <code>@</code>, ignoring case.  The directives are distinguished by
+   * their first character, and by their fifth character for the two starting with <code>END_</code>, so at most one
+   * region comparison is made.  A directive must be followed by at least one more character to match.
+   *
+   * @param  pos  the position just after the <code>@</code>
+   *
+   * @return  the directive or {@link #DIRECTIVE_NONE}
+   */
+  private static int matchDirective(String htmlContent, int pos, int len) {
+    if (pos >= len) {
+      return DIRECTIVE_NONE;
+    }
+    int directive;
+    switch (htmlContent.charAt(pos)) {
+      case 'U':
+      case 'u':
+        directive = DIRECTIVE_URL;
+        break;
+      case 'B':
+      case 'b':
+        directive = DIRECTIVE_BEGIN_LIGHT_AREA;
+        break;
+      case 'E':
+      case 'e':
+        if (pos + 4 >= len) {
+          return DIRECTIVE_NONE;
+        }
+        switch (htmlContent.charAt(pos + 4)) {
+          case 'L':
+          case 'l':
+            directive = DIRECTIVE_END_LIGHT_AREA;
+            break;
+          case 'C':
+          case 'c':
+            directive = DIRECTIVE_END_CONTENT_LINE;
+            break;
+          default:
+            return DIRECTIVE_NONE;
+        }
+        break;
+      case 'P':
+      case 'p':
+        directive = DIRECTIVE_PRINT_CONTENT_HORIZONTAL_DIVIDER;
+        break;
+      case 'S':
+      case 's':
+      case '\u017F': // LATIN SMALL LETTER LONG S, matched by equalsIgnoreCase
+        directive = DIRECTIVE_START_CONTENT_LINE;
+        break;
+      case 'L':
+      case 'l':
+        directive = DIRECTIVE_LINK_CLASS;
+        break;
+      default:
+        return DIRECTIVE_NONE;
+    }
+    String name = directives[directive];
+    int nameLen = name.length();
+    return ((pos + nameLen) < len && htmlContent.regionMatches(true, pos, name, 0, nameLen)) ? directive : DIRECTIVE_NONE;
+  }
+
   private static final String[] tags = {
       "@PRINT_CONTENT_HORIZONTAL_DIVIDER",
       "@START_CONTENT_LINE",
@@ -185,7 +492,8 @@ public abstract class HtmlInputStreamPage extends InputStreamPage {
   };
 
   /**
-   * Prints HTML with template substitutions.
+   * Prints HTML with template substitutions.  The stream is decoded as {@link AnyDocument#ENCODING},
+   * the same as the HTML resources parsed by this page.
    *
    * @return  The current {@code contentLine}, which may have been replaced by a call to
    *          {@link WebPageLayout#contentVerticalDivider(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.html.servlet.FlowContent)}
@@ -207,7 +515,7 @@ public abstract class HtmlInputStreamPage extends InputStreamPage {
     if (in == null) {
       throw new NullPointerException("in is null");
     }
-    Reader reader = new InputStreamReader(in);
+    Reader reader = new InputStreamReader(in, AnyDocument.ENCODING);
     if (req == null) {
       IoUtils.copy(reader, contentLine.unsafe());
     } else {
@@ -0,0 +1,314 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import static com.aoapps.encoding.TextInXhtmlAttributeEncoder.encodeTextInXhtmlAttribute;
+
+import com.aoapps.html.any.AnyDocument;
+import com.aoapps.html.servlet.ContentEE;
+import com.aoapps.html.servlet.FlowContent;
+import com.aoapps.lang.io.IoUtils;
+import com.aoapps.net.URIEncoder;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An {@link HtmlInputStreamPage} resource parsed once into literal text and <code>@</code> tags,
+ * so rendering is a series of bulk writes.  Templates are cached per class and parsed again when
+ * the resource is modified.  The links of <code>@URL</code> tags are also built once, when they do
+ * not depend on the request.
+ *
+ * @see  HtmlInputStreamPage#printHtmlStream(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.ContentEE, com.aoapps.html.servlet.FlowContent, java.io.InputStream, java.lang.String, java.util.concurrent.atomic.AtomicReference)
+ *
+ * @author  AO Industries, Inc.
+ */
+final class HtmlTemplate {
+
+  private static final int LITERAL = 0;
+  private static final int PRINT_CONTENT_HORIZONTAL_DIVIDER = 1;
+  private static final int START_CONTENT_LINE = 2;
+  private static final int BEGIN_LIGHT_AREA = 3;
+  private static final int END_CONTENT_LINE = 4;
+  private static final int END_LIGHT_AREA = 5;
+  private static final int LINK_CLASS = 6;
+  private static final int URL = 7;
+
+  /**
+   * The tags, indexed by opcode.
+   */
+  private static final String[] tags = {
+      null,
+      "@PRINT_CONTENT_HORIZONTAL_DIVIDER",
+      "@START_CONTENT_LINE",
+      "@BEGIN_LIGHT_AREA",
+      "@END_CONTENT_LINE",
+      "@END_LIGHT_AREA",
+      "@LINK_CLASS",
+      "@URL"
+  };
+
+  /**
+   * The most recently parsed template per class.  Held by the class itself, so the template does not keep the class
+   * and its class loader reachable once the web application is unloaded.
+   */
+  private static final ClassValue<AtomicReference<HtmlTemplate>> templates = new ClassValue<>() {
+    @Override
+    protected AtomicReference<HtmlTemplate> computeValue(Class<?> clazz) {
+      return new AtomicReference<>();
+    }
+  };
+
+  /**
+   * Gets the template for the HTML resource of the given class, parsing it when first used or modified.
+   *
+   * @return  the template or {@code null} when the resource is not found
+   *
+   * @see  HtmlInputStreamPage#getHtmlInputStream(java.lang.Class)
+   */
+  static HtmlTemplate getTemplate(Class<?> clazz) throws IOException {
+    AtomicReference<HtmlTemplate> templateRef = templates.get(clazz);
+    URL resource = HtmlInputStreamPage.getHtmlResource(clazz);
+    if (resource == null) {
+      templateRef.set(null);
+      return null;
+    }
+    String location = resource.toExternalForm();
+    long lastModified = HtmlInputStreamPage.getHtmlLastModified(clazz);
+    HtmlTemplate template = templateRef.get();
+    if (
+        template == null
+            || template.lastModified != lastModified
+            || !template.location.equals(location)
+    ) {
+      try (Reader in = new InputStreamReader(HtmlInputStreamPage.openHtmlStream(resource), AnyDocument.ENCODING)) {
+        template = new HtmlTemplate(location, lastModified, IoUtils.readFully(in));
+      }
+      templateRef.set(template);
+    }
+    return template;
+  }
+
+  private final String location;
+  private final long lastModified;
+  private final String source;
+  private final int[] opcodes;
+  private final Object[] operands;
+
+  /**
+   * The links resolved for <code>@URL</code> tags, indexed by op.
+   * Written without synchronization, since all threads resolve the same link.
+   */
+  private final ResolvedUrl[] resolvedUrls;
+
+  private HtmlTemplate(String location, long lastModified, String source) {
+    this.location = location;
+    this.lastModified = lastModified;
+    this.source = source;
+    List<Integer> opcodeList = new ArrayList<>();
+    List<Object> operandList = new ArrayList<>();
+    int len = source.length();
+    int literalStart = 0;
+    int pos = 0;
+    while ((pos = source.indexOf('@', pos)) != -1) {
+      int opcode = LITERAL;
+      for (int c = 1; c < tags.length; c++) {
+        String tag = tags[c];
+        if (source.regionMatches(true, pos, tag, 0, tag.length())) {
+          opcode = c;
+          break;
+        }
+      }
+      if (opcode == LITERAL) {
+        pos++;
+      } else {
+        if (pos > literalStart) {
+          opcodeList.add(LITERAL);
+          operandList.add(source.substring(literalStart, pos).toCharArray());
+        }
+        pos += tags[opcode].length();
+        Object operand = null;
+        if (opcode == URL) {
+          // The character following @URL is the opening parenthesis
+          int endPos = source.indexOf(')', pos);
+          if (endPos == -1 || endPos <= pos) {
+            throw new IllegalArgumentException("Unable to find closing parenthesis for @URL( substitution, pos=" + pos);
+          }
+          operand = source.substring(pos + 1, endPos);
+          pos = endPos + 1;
+        }
+        opcodeList.add(opcode);
+        operandList.add(operand);
+        literalStart = pos;
+      }
+    }
+    if (len > literalStart) {
+      opcodeList.add(LITERAL);
+      operandList.add(source.substring(literalStart, len).toCharArray());
+    }
+    int size = opcodeList.size();
+    this.opcodes = new int[size];
+    for (int i = 0; i < size; i++) {
+      opcodes[i] = opcodeList.get(i);
+    }
+    this.operands = operandList.toArray();
+    this.resolvedUrls = new ResolvedUrl[size];
+  }
+
+  /**
+   * The link of an <code>@URL</code> tag, resolved once and shared by all requests where the link
+   * {@linkplain WebSiteRequest#isUrlRequestIndependent(com.aoapps.web.framework.WebPage) does not depend on the request}.
+   */
+  private static final class ResolvedUrl {
+
+    private final String contextPath;
+    private final WebPage page;
+
+    /**
+     * The context path and URL, encoded to RFC 3986 format, or {@code null} when not yet built.
+     */
+    private final String url;
+
+    /**
+     * {@link #url} encoded for an XHTML attribute.
+     */
+    private final String attribute;
+
+    private ResolvedUrl(String contextPath, WebPage page, String url, String attribute) {
+      this.contextPath = contextPath;
+      this.page = page;
+      this.url = url;
+      this.attribute = attribute;
+    }
+  }
+
+  /**
+   * Prints the link of an <code>@URL</code> tag.  The link is only built once, with only
+   * {@linkplain HttpServletResponse#encodeURL(java.lang.String) response encoding} per request.
+   */
+  private void printUrl(int op, WebSiteRequest req, HttpServletResponse resp, Writer unsafe) throws ServletException, IOException {
+    String classAndParamsFragment = (String) operands[op];
+    String contextPath = req.getContextPath();
+    ResolvedUrl resolved = resolvedUrls[op];
+    if (resolved == null || !resolved.contextPath.equals(contextPath)) {
+      resolved = new ResolvedUrl(contextPath, req.getWebPageForClass(classAndParamsFragment), null, null);
+      resolvedUrls[op] = resolved;
+    }
+    if (!req.isUrlRequestIndependent(resolved.page)) {
+      encodeTextInXhtmlAttribute(req.getEncodedUrlForClass(classAndParamsFragment, resp), unsafe);
+      return;
+    }
+    if (resolved.url == null) {
+      String url = URIEncoder.encodeURI(contextPath + req.getUrlForClass(classAndParamsFragment));
+      StringBuilder attribute = new StringBuilder(url.length());
+      encodeTextInXhtmlAttribute(url, attribute);
+      resolved = new ResolvedUrl(contextPath, resolved.page, url, attribute.toString());
+      resolvedUrls[op] = resolved;
+    }
+    // Response encoding may add the session or other parameters
+    String encoded = resp.encodeURL(resolved.url);
+    if (encoded.equals(resolved.url)) {
+      unsafe.write(resolved.attribute);
+    } else {
+      encodeTextInXhtmlAttribute(encoded, unsafe);
+    }
+  }
+
+  /**
+   * Prints this template.
+   *
+   * @return  The current {@code contentLine}, which may have been replaced by <code>@START_CONTENT_LINE</code>.
+   *
+   * @see  HtmlInputStreamPage#printHtmlStream(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.ContentEE, com.aoapps.html.servlet.FlowContent, java.io.InputStream, java.lang.String, java.util.concurrent.atomic.AtomicReference)
+   */
+  @SuppressWarnings("deprecation")
+  <__ extends FlowContent<__>> __ print(
+      WebSiteRequest req,
+      HttpServletResponse resp,
+      WebPageLayout layout,
+      ContentEE<?> content,
+      __ contentLine,
+      String linkClass,
+      AtomicReference<FlowContent<?>> lightAreaRef
+  ) throws ServletException, IOException {
+    if (req == null) {
+      contentLine.unsafe(source);
+    } else {
+      Writer unsafe = contentLine.getRawUnsafe();
+      for (int i = 0; i < opcodes.length; i++) {
+        switch (opcodes[i]) {
+          case LITERAL:
+            unsafe.write((char[]) operands[i]);
+            break;
+          case PRINT_CONTENT_HORIZONTAL_DIVIDER:
+            layout.contentHorizontalDivider(req, resp, content);
+            break;
+          case START_CONTENT_LINE:
+            contentLine = layout.startContentLine(req, resp, content);
+            unsafe = contentLine.getRawUnsafe();
+            break;
+          case BEGIN_LIGHT_AREA: {
+            if (lightAreaRef.get() != null) {
+              throw new IllegalStateException("@BEGIN_LIGHT_AREA may not be nested");
+            }
+            FlowContent<?> lightArea = layout.startLightArea(req, resp, contentLine);
+            if (lightArea == null) {
+              throw new AssertionError("lightArea == null");
+            }
+            lightAreaRef.set(lightArea);
+            break;
+          }
+          case END_CONTENT_LINE:
+            layout.endContentLine(req, resp, contentLine);
+            break;
+          case END_LIGHT_AREA: {
+            FlowContent<?> lightArea = lightAreaRef.get();
+            if (lightArea == null) {
+              throw new IllegalStateException("@END_LIGHT_AREA does not have matching @BEGIN_LIGHT_AREA");
+            }
+            layout.endLightArea(req, resp, lightArea);
+            lightAreaRef.set(null);
+            break;
+          }
+          case LINK_CLASS:
+            unsafe.write(linkClass == null ? "aoLightLink" : linkClass);
+            break;
+          case URL:
+            printUrl(i, req, resp, unsafe);
+            break;
+          default:
+            throw new AssertionError("Unexpected opcode: " + opcodes[i]);
+        }
+      }
+    }
+    return contentLine;
+  }
+}
@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -44,6 +44,19 @@ public abstract class InputStreamPage extends WebPage {
 
   private static final long serialVersionUID = 1L;
 
+  /**
+   * The default response buffer size, large enough to send long streams in large chunks.
+   */
+  private static final int RESPONSE_BUFFER_SIZE = 32 * 1024;
+
+  /**
+   * Streams are sent in larger chunks than the container default.
+   */
+  @Override
+  protected int getResponseBufferSize(WebSiteRequest req) throws ServletException {
+    return RESPONSE_BUFFER_SIZE;
+  }
+
   @Override
   @SuppressWarnings("unchecked")
   public <__ extends FlowContent<__>> void doGet(
@@ -56,13 +69,29 @@ public abstract class InputStreamPage extends WebPage {
       layout.contentTitle(req, resp, this, content);
       layout.contentHorizontalDivider(req, resp, content);
       FlowContent<?> contentLine = layout.startContentLine(req, resp, content);
-      try (InputStream in = getInputStream()) {
-        contentLine = printStream(req, resp, layout, content, (FlowContent) contentLine, in);
-      }
+      contentLine = printContent(req, resp, layout, content, (FlowContent) contentLine);
       layout.endContentLine(req, resp, contentLine);
     });
   }
 
+  /**
+   * Prints the content of the page.  Defaults to printing the {@linkplain #getInputStream() input stream}
+   * with {@link #printStream(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.ContentEE, com.aoapps.html.servlet.FlowContent, java.io.InputStream)}.
+   *
+   * @return  The current {@code contentLine}, which may have been replaced.
+   */
+  protected <__ extends FlowContent<__>> __ printContent(
+      WebSiteRequest req,
+      HttpServletResponse resp,
+      WebPageLayout layout,
+      ContentEE<?> content,
+      __ contentLine
+  ) throws ServletException, IOException {
+    try (InputStream in = getInputStream()) {
+      return printStream(req, resp, layout, content, contentLine, in);
+    }
+  }
+
   /**
    * Gets the stream that the text should be read from.
    */
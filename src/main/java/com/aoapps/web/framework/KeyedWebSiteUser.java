@@ -0,0 +1,42 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+/**
+ * A user with a key that identifies it across restarts.
+ *
+ * <p>The {@linkplain UploadedFile uploaded files} of these users are recorded in the uploaded file journal and
+ * are returned to the user with the same key after a restart.  Uploaded files of other users do not survive
+ * a restart.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public interface KeyedWebSiteUser extends WebSiteUser {
+
+  /**
+   * Gets the key that identifies this user.  The key must be unique to this user and stable across restarts,
+   * since a user with the same key is given access to the files uploaded before the restart.
+   */
+  String getUserKey();
+}
@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,13 +23,20 @@
 
 package com.aoapps.web.framework;
 
+import com.aoapps.html.any.Content;
 import com.aoapps.html.servlet.FlowContent;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Pulls the page contents from a file while wrapping it with a PRE block.
+ * The file is escaped as plain text, unless {@linkplain #isRawPassthrough(com.aoapps.web.framework.WebSiteRequest) sent as-is}.
  *
  * @author  AO Industries, Inc.
  */
@@ -44,6 +51,28 @@ public abstract class PreFilePage extends FilePage {
       WebPageLayout layout,
       __ flow
   ) throws ServletException, IOException {
-    flow.pre__(pre -> printFile(pre, getFile()));
+    flow.pre__(pre -> printFile(req, pre, getFile()));
+  }
+
+  /**
+   * Prints the file escaped as plain text, using the content cache when enabled.
+   * The file is read in the platform default encoding, as by {@link FilePage}.
+   */
+  @Override
+  protected void printFile(WebSiteRequest req, Content<?, ?> content, File file) throws IOException {
+    if (isRawPassthrough(req)) {
+      super.printFile(req, content, file);
+      return;
+    }
+    @SuppressWarnings("deprecation")
+    Writer unsafe = content.getRawUnsafe();
+    String cached = ContentCache.getInstance(getServletContext()).getText(file);
+    if (cached != null) {
+      PreformattedText.write(cached, unsafe);
+    } else {
+      try (InputStream in = new FileInputStream(file)) {
+        PreformattedText.write(in, Charset.defaultCharset(), unsafe);
+      }
+    }
   }
 }
@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2000-2009, 2015, 2016, 2019, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,15 +23,18 @@
 
 package com.aoapps.web.framework;
 
+import com.aoapps.html.any.AnyDocument;
 import com.aoapps.html.servlet.ContentEE;
 import com.aoapps.html.servlet.FlowContent;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Takes the output of a native process and puts it in a PRE block.
+ * The output is escaped as plain text.
  *
  * @author  AO Industries, Inc.
  */
@@ -48,7 +51,11 @@ public abstract class PreProcessPage extends ProcessPage {
       __ contentLine,
       InputStream in
   ) throws ServletException, IOException {
-    contentLine.pre__(pre -> printStreamStatic(pre, in));
+    contentLine.pre__(pre -> {
+      @SuppressWarnings("deprecation")
+      Writer unsafe = pre.getRawUnsafe();
+      PreformattedText.write(in, AnyDocument.ENCODING, unsafe);
+    });
     return contentLine;
   }
 }
@@ -0,0 +1,163 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes plain text as the content of a <code>&lt;pre&gt;</code> element, escaping only the characters
+ * that require it.  Spans between escapes are written in bulk.  Characters not allowed in XML are
+ * replaced, so the output is well-formed for both HTML and XHTML.
+ *
+ * @author  AO Industries, Inc.
+ */
+final class PreformattedText {
+
+  /** Make no instances. */
+  private PreformattedText() {
+    throw new AssertionError();
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final String REPLACEMENT = "\uFFFD";
+
+  /**
+   * The replacement of each character below <code>'?'</code>, or {@code null} when written as-is.
+   */
+  private static final String[] ESCAPES = new String['>' + 1];
+
+  static {
+    for (char ch = 0; ch < ' '; ch++) {
+      if (ch != '\t' && ch != '\n' && ch != '\r') {
+        ESCAPES[ch] = REPLACEMENT;
+      }
+    }
+    ESCAPES['&'] = "&amp;";
+    ESCAPES['<'] = "&lt;";
+    ESCAPES['>'] = "&gt;";
+  }
+
+  /**
+   * Gets the replacement of a character.
+   *
+   * @return  the replacement or {@code null} when written as-is
+   */
+  private static String escape(char ch) {
+    if (ch < ESCAPES.length) {
+      return ESCAPES[ch];
+    }
+    return (ch >= '\uFFFE') ? REPLACEMENT : null;
+  }
+
+  /**
+   * Writes a range of characters.
+   */
+  static void write(char[] text, int off, int len, Writer out) throws IOException {
+    int end = off + len;
+    int start = off;
+    for (int i = off; i < end; i++) {
+      String escape = escape(text[i]);
+      if (escape != null) {
+        if (i > start) {
+          out.write(text, start, i - start);
+        }
+        out.write(escape);
+        start = i + 1;
+      }
+    }
+    if (end > start) {
+      out.write(text, start, end - start);
+    }
+  }
+
+  /**
+   * Writes a string.
+   */
+  static void write(String text, Writer out) throws IOException {
+    int end = text.length();
+    int start = 0;
+    for (int i = 0; i < end; i++) {
+      String escape = escape(text.charAt(i));
+      if (escape != null) {
+        if (i > start) {
+          out.write(text, start, i - start);
+        }
+        out.write(escape);
+        start = i + 1;
+      }
+    }
+    if (end > start) {
+      out.write(text, start, end - start);
+    }
+  }
+
+  /**
+   * Writes the contents of a stream, decoded in large chunks.  Malformed input is replaced.
+   * The stream is not closed.
+   */
+  static void write(InputStream in, Charset charset, Writer out) throws IOException {
+    CharsetDecoder decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    boolean endOfInput = false;
+    while (!endOfInput) {
+      int count = in.read(bytes.array(), bytes.position(), bytes.remaining());
+      if (count == -1) {
+        endOfInput = true;
+      } else {
+        bytes.position(bytes.position() + count);
+      }
+      bytes.flip();
+      CoderResult result;
+      do {
+        result = decoder.decode(bytes, chars, endOfInput);
+        writeChars(chars, out);
+      } while (result.isOverflow());
+      // Keep any partial character for the next chunk
+      bytes.compact();
+    }
+    CoderResult result;
+    do {
+      result = decoder.flush(chars);
+      writeChars(chars, out);
+    } while (result.isOverflow());
+  }
+
+  private static void writeChars(CharBuffer chars, Writer out) throws IOException {
+    chars.flip();
+    write(chars.array(), 0, chars.limit(), out);
+    chars.clear();
+  }
+}
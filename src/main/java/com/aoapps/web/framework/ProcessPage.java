@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2009, 2015, 2016, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2000-2009, 2015, 2016, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -23,27 +23,370 @@
 
 package com.aoapps.web.framework;
 
+import com.aoapps.html.servlet.ContentEE;
+import com.aoapps.html.servlet.FlowContent;
+import com.aoapps.servlet.attribute.ScopeEE;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Pulls information from a native process to be used as the content.
  *
+ * <p>The output is streamed to the client as it is produced.  The error stream is drained and logged,
+ * so a process writing to it cannot block.  Processes may be limited by
+ * {@linkplain #getProcessTimeout() run time} and by {@linkplain #getMaxConcurrentProcesses() count},
+ * and are killed when the output cannot be sent to the client.  The output may also be
+ * {@linkplain #getOutputCacheTtl() cached} and shared by requests.</p>
+ *
  * @author  AO Industries, Inc.
  */
 public abstract class ProcessPage extends InputStreamPage {
 
   private static final long serialVersionUID = 1L;
 
+  private static final Logger logger = Logger.getLogger(ProcessPage.class.getName());
+
+  /**
+   * The maximum number of bytes of the error stream logged per process.  The remainder is discarded.
+   */
+  private static final int MAX_LOGGED_ERROR_BYTES = 4096;
+
+  private transient Semaphore processPermits;
+
+  /**
+   * Gets the output of a new {@linkplain #getProcess() process}.
+   *
+   * <p>This page runs the process itself, so it can drain the error stream, apply the limits, and kill the process.
+   * When this method is overridden, the page reads the overriding stream instead, as it did before, without
+   * any of the process management or the {@linkplain #getOutputCacheTtl() output cache}.</p>
+   */
   @Override
   public InputStream getInputStream() throws IOException {
     return getProcess().getInputStream();
   }
 
+  /**
+   * Whether the page runs the process itself, by class, which is when {@link #getInputStream()} is not overridden.
+   */
+  private static final ClassValue<Boolean> managesProcess = new ClassValue<>() {
+    @Override
+    protected Boolean computeValue(Class<?> clazz) {
+      try {
+        return clazz.getMethod("getInputStream").getDeclaringClass() == ProcessPage.class;
+      } catch (NoSuchMethodException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  /**
+   * Gets the maximum number of milliseconds a process may run, after which it is killed and the request fails
+   * with a {@link ServletException}, so the truncated output is never taken as complete.
+   * Defaults to {@code 0}, which does not limit the run time.
+   */
+  protected long getProcessTimeout() {
+    return 0;
+  }
+
+  /**
+   * Gets the maximum number of processes this page runs at once.  Additional requests wait for a process to
+   * complete, up to the {@linkplain #getProcessTimeout() process timeout}.  Defaults to {@code 0}, which does not
+   * limit the number of processes.
+   */
+  protected int getMaxConcurrentProcesses() {
+    return 0;
+  }
+
+  private synchronized Semaphore getProcessPermits(int maxConcurrentProcesses) {
+    if (processPermits == null) {
+      processPermits = new Semaphore(maxConcurrentProcesses, true);
+    }
+    return processPermits;
+  }
+
+  /**
+   * Runs the {@linkplain #getProcess() process} and prints its output with
+   * {@link #printStream(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.ContentEE, com.aoapps.html.servlet.FlowContent, java.io.InputStream)}.
+   * The process is killed when its output is not completely printed, such as when the client disconnects.
+   *
+   * <p>When {@linkplain #getOutputCacheTtl() cached}, prints the cached output instead.  When
+   * {@link #getInputStream()} is overridden, prints its stream instead.</p>
+   */
+  @Override
+  protected <__ extends FlowContent<__>> __ printContent(
+      WebSiteRequest req,
+      HttpServletResponse resp,
+      WebPageLayout layout,
+      ContentEE<?> content,
+      __ contentLine
+  ) throws ServletException, IOException {
+    if (!managesProcess.get(getClass())) {
+      return super.printContent(req, resp, layout, content, contentLine);
+    }
+    long ttl = getOutputCacheTtl();
+    if (ttl > 0) {
+      try (InputStream in = new ByteArrayInputStream(getCachedOutput(req, ttl).output)) {
+        return printStream(req, resp, layout, content, contentLine, in);
+      }
+    }
+    return runProcess(in -> printStream(req, resp, layout, content, contentLine, in));
+  }
+
+  /**
+   * Handles the output of a process.
+   */
+  @FunctionalInterface
+  private static interface OutputHandler<T> {
+    T handle(InputStream in) throws ServletException, IOException;
+  }
+
+  /**
+   * Runs the {@linkplain #getProcess() process}, within the limits of {@link #getProcessTimeout()}
+   * and {@link #getMaxConcurrentProcesses()}.  The process is killed when its output is not completely
+   * handled.
+   *
+   * @throws  ServletException  when the process is killed by the timeout, after its partial output is handled
+   */
+  private <T> T runProcess(OutputHandler<T> handler) throws ServletException, IOException {
+    long timeout = getProcessTimeout();
+    int maxConcurrentProcesses = getMaxConcurrentProcesses();
+    Semaphore permits = maxConcurrentProcesses > 0 ? getProcessPermits(maxConcurrentProcesses) : null;
+    if (permits != null) {
+      try {
+        if (timeout > 0) {
+          if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            throw new ServletException("Timeout waiting for one of " + maxConcurrentProcesses + " processes: " + getClass().getName());
+          }
+        } else {
+          permits.acquire();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException ioErr = new InterruptedIOException();
+        ioErr.initCause(e);
+        throw ioErr;
+      }
+    }
+    try {
+      Process process = getProcess();
+      boolean handled = false;
+      try {
+        drainErrorStream(process);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        if (timeout > 0) {
+          process.onExit().orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((p, e) -> {
+            if (e != null) {
+              logger.log(Level.WARNING, "Killing process after " + timeout + " ms: " + getClass().getName());
+              // Set before killing, so the end of the output is never mistaken for completion
+              timedOut.set(true);
+              destroy(process);
+            }
+          });
+        }
+        T result;
+        try (InputStream in = process.getInputStream()) {
+          result = handler.handle(in);
+        }
+        handled = true;
+        if (timedOut.get()) {
+          throw new ServletException("Process killed after " + timeout + " ms, output incomplete: " + getClass().getName());
+        }
+        return result;
+      } finally {
+        if (!handled) {
+          destroy(process);
+        }
+      }
+    } finally {
+      if (permits != null) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of milliseconds the output of the process is reused for all requests to this page.
+   * Defaults to {@code 0}, which runs the process for every request.
+   *
+   * <p>When cached, concurrent requests share a single run of the process, and the
+   * {@linkplain #getLastModified(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse) last modified time}
+   * is the time the output last changed.</p>
+   */
+  protected long getOutputCacheTtl() {
+    return 0;
+  }
+
+  private static final class CachedOutput {
+
+    private final ProcessPage page;
+    private final byte[] output;
+    private final long lastModified;
+    private final long expires;
+
+    private CachedOutput(ProcessPage page, byte[] output, long lastModified, long expires) {
+      this.page = page;
+      this.output = output;
+      this.lastModified = lastModified;
+      this.expires = expires;
+    }
+  }
+
+  // All below are guarded by this
+  private transient CachedOutput cachedOutput;
+  private transient CompletableFuture<CachedOutput> capturingOutput;
+
+  /**
+   * The cached output used by the current request, so its last modified time and content are always from the same
+   * run of the process, even when the output expires during the request.
+   */
+  private static final ScopeEE.Request.Attribute<CachedOutput> CACHED_OUTPUT_REQUEST_ATTRIBUTE =
+      ScopeEE.REQUEST.attribute(ProcessPage.class.getName() + ".cachedOutput");
+
+  /**
+   * Gets the cached output for the given request, resolving only once per request.
+   */
+  private CachedOutput getCachedOutput(WebSiteRequest req, long ttl) throws ServletException, IOException {
+    if (req == null) {
+      return getCachedOutput(ttl);
+    }
+    CachedOutput resolved = CACHED_OUTPUT_REQUEST_ATTRIBUTE.context(req).get();
+    if (resolved == null || resolved.page != this) {
+      resolved = getCachedOutput(ttl);
+      CACHED_OUTPUT_REQUEST_ATTRIBUTE.context(req).set(resolved);
+    }
+    return resolved;
+  }
+
+  /**
+   * Gets the cached output, running the process when expired.  When the process is already running for
+   * another request, waits for its output.
+   */
+  private CachedOutput getCachedOutput(long ttl) throws ServletException, IOException {
+    CompletableFuture<CachedOutput> future;
+    CachedOutput previous;
+    boolean capture;
+    synchronized (this) {
+      previous = cachedOutput;
+      long currentTime = System.currentTimeMillis();
+      if (previous != null && currentTime < previous.expires && currentTime >= previous.expires - ttl) {
+        return previous;
+      }
+      future = capturingOutput;
+      capture = future == null;
+      if (capture) {
+        capturingOutput = future = new CompletableFuture<>();
+      }
+    }
+    if (capture) {
+      try {
+        long startTime = System.currentTimeMillis();
+        byte[] output = runProcess(InputStream::readAllBytes);
+        CachedOutput captured = new CachedOutput(
+            this,
+            output,
+            // Unchanged output keeps its time, so clients may continue to use their copy
+            (previous != null && Arrays.equals(previous.output, output)) ? previous.lastModified : startTime,
+            startTime + ttl
+        );
+        synchronized (this) {
+          cachedOutput = captured;
+          capturingOutput = null;
+        }
+        future.complete(captured);
+        return captured;
+      } catch (ServletException | IOException | RuntimeException | Error e) {
+        synchronized (this) {
+          capturingOutput = null;
+        }
+        future.completeExceptionally(e);
+        throw e;
+      }
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException ioErr = new InterruptedIOException();
+      ioErr.initCause(e);
+      throw ioErr;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ServletException) {
+        throw new ServletException(cause.getMessage(), cause);
+      }
+      if (cause instanceof IOException) {
+        throw new IOException(cause.getMessage(), cause);
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new ServletException(cause);
+    }
+  }
+
+  /**
+   * Kills a process along with any processes it started.
+   */
+  private static void destroy(Process process) {
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
+  }
+
+  /**
+   * Reads the error stream of a process in the background until closed, logging the beginning of any error output.
+   */
+  private void drainErrorStream(Process process) {
+    String name = getClass().getName();
+    Thread thread = new Thread(
+        () -> {
+          ByteArrayOutputStream logged = new ByteArrayOutputStream();
+          try (InputStream err = process.getErrorStream()) {
+            byte[] buff = new byte[MAX_LOGGED_ERROR_BYTES];
+            int count;
+            while ((count = err.read(buff)) != -1) {
+              logged.write(buff, 0, Math.min(count, MAX_LOGGED_ERROR_BYTES - logged.size()));
+            }
+          } catch (IOException e) {
+            logger.log(Level.FINE, "Error stream closed: " + name, e);
+          }
+          if (logged.size() > 0) {
+            logger.log(Level.WARNING, "Process error output: " + name + ": " + new String(logged.toByteArray(), Charset.defaultCharset()));
+          }
+        },
+        ProcessPage.class.getName() + ": " + name
+    );
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * The last modified time is the time the {@linkplain #getOutputCacheTtl() cached output} last changed,
+   * or {@code -1} when not cached.
+   */
   @Override
-  public long getLastModified(WebSiteRequest req, HttpServletResponse resp) {
+  public long getLastModified(WebSiteRequest req, HttpServletResponse resp) throws ServletException {
+    long ttl = getOutputCacheTtl();
+    if (ttl > 0 && managesProcess.get(getClass())) {
+      try {
+        return getCachedOutput(req, ttl).lastModified;
+      } catch (IOException e) {
+        throw new ServletException(e);
+      }
+    }
     return -1;
   }
 
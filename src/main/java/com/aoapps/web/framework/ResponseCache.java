@@ -0,0 +1,245 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import com.aoapps.encoding.Doctype;
+import com.aoapps.encoding.Serialization;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * Caches the fully encoded response of {@linkplain WebPage#isResponseCacheable(com.aoapps.web.framework.WebSiteRequest) cacheable}
+ * pages, bounded by total bytes with least-recently-used eviction.  Responses too large to cache still have their entity tag
+ * cached, so conditional requests may be answered without rendering.
+ *
+ * @see  WebPage#RESPONSE_CACHE_MAX_BYTES_INIT_PARAM
+ *
+ * @author  AO Industries, Inc.
+ */
+final class ResponseCache {
+
+  private static final Logger logger = Logger.getLogger(ResponseCache.class.getName());
+
+  /**
+   * The default maximum number of bytes cached per application.
+   */
+  private static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+  /**
+   * A single response may use at most this fraction of the cache.
+   */
+  private static final int MAX_ENTRY_FRACTION = 4;
+
+  /**
+   * The approximate number of bytes used by each entry, in addition to its content.
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private static final ConcurrentMap<ServletContext, ResponseCache> instances = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the cache for the given application.
+   */
+  static ResponseCache getInstance(ServletContext servletContext) {
+    return instances.computeIfAbsent(servletContext, ResponseCache::new);
+  }
+
+  /**
+   * Releases the cache for the given application.
+   */
+  static void destroy(ServletContext servletContext) {
+    instances.remove(servletContext);
+  }
+
+  /**
+   * Identifies one rendering of a page.
+   */
+  static final class Key {
+
+    private final WebPage page;
+    private final String layout;
+    private final Serialization serialization;
+    private final Doctype doctype;
+    private final int hash;
+
+    Key(WebPage page, String layout, Serialization serialization, Doctype doctype) {
+      this.page = page;
+      this.layout = layout;
+      this.serialization = serialization;
+      this.doctype = doctype;
+      this.hash = Objects.hash(page, layout, serialization, doctype);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return
+          hash == other.hash
+              && serialization == other.serialization
+              && doctype == other.doctype
+              && Objects.equals(layout, other.layout)
+              && page.equals(other.page);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  static final class Entry {
+
+    private final long lastModified;
+    private final String etag;
+    private final int length;
+    private final byte[] content;
+    private volatile byte[] compressedContent;
+
+    private Entry(long lastModified, String etag, int length, byte[] content) {
+      this.lastModified = lastModified;
+      this.etag = etag;
+      this.length = length;
+      this.content = content;
+    }
+
+    /**
+     * Gets the strong entity tag of the content.
+     */
+    String getETag() {
+      return etag;
+    }
+
+    /**
+     * Gets the encoded content.
+     *
+     * @return  the content or {@code null} when too large to be cached.  The returned array must not be modified.
+     */
+    @SuppressWarnings("ReturnOfCollectionOrArrayField")
+    byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * Gets the length of the content, even when the content is too large to be cached.
+     */
+    int getLength() {
+      return length;
+    }
+
+    /**
+     * Gets the content compressed, compressing only once so identical output is never recompressed.
+     * The compressed content is not counted in the size of the cache.
+     *
+     * @return  the compressed content or {@code null} when the content is too large to be cached.
+     *          The returned array must not be modified.
+     */
+    @SuppressWarnings("ReturnOfCollectionOrArrayField")
+    byte[] getCompressedContent(Compression compression) {
+      if (content == null) {
+        return null;
+      }
+      byte[] compressed = compressedContent;
+      if (compressed == null) {
+        // Concurrent requests may compress more than once, but all produce the same bytes
+        compressedContent = compressed = compression.compress(content);
+      }
+      return compressed;
+    }
+
+    private int size() {
+      return ENTRY_OVERHEAD + (content == null ? 0 : content.length);
+    }
+  }
+
+  private final long maxBytes;
+
+  // All below are guarded by this
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  private ResponseCache(ServletContext servletContext) {
+    long max = DEFAULT_MAX_BYTES;
+    String param = servletContext.getInitParameter(WebPage.RESPONSE_CACHE_MAX_BYTES_INIT_PARAM);
+    if (param != null && !(param = param.trim()).isEmpty()) {
+      try {
+        max = Long.parseLong(param);
+      } catch (NumberFormatException e) {
+        logger.log(Level.WARNING, "Invalid " + WebPage.RESPONSE_CACHE_MAX_BYTES_INIT_PARAM + ", using default: " + param, e);
+      }
+    }
+    this.maxBytes = max;
+  }
+
+  /**
+   * Checks if this cache is enabled.
+   */
+  boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Gets the cached entry.
+   *
+   * @return  the entry or {@code null} when not cached or modified since cached
+   */
+  synchronized Entry get(Key key, long lastModified) {
+    Entry entry = entries.get(key);
+    return (entry == null || entry.lastModified != lastModified) ? null : entry;
+  }
+
+  /**
+   * Caches content, replacing any previous entry and evicting least-recently-used entries until within bounds.
+   * Content larger than a fraction of the cache only has its entity tag cached.
+   *
+   * @return  the new entry
+   */
+  synchronized Entry put(Key key, long lastModified, String etag, byte[] content) {
+    Entry entry = new Entry(
+        lastModified,
+        etag,
+        content.length,
+        (content.length > maxBytes / MAX_ENTRY_FRACTION) ? null : content
+    );
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      totalBytes -= old.size();
+    }
+    totalBytes += entry.size();
+    Iterator<Entry> iter = entries.values().iterator();
+    while (totalBytes > maxBytes && iter.hasNext()) {
+      totalBytes -= iter.next().size();
+      iter.remove();
+    }
+    return entry;
+  }
+}
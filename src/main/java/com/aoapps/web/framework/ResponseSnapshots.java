@@ -0,0 +1,387 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * Stores the fully encoded response of {@linkplain WebPage#isResponseSnapshot(com.aoapps.web.framework.WebSiteRequest) snapshot}
+ * pages in files under the application's {@linkplain ServletContext#TEMPDIR temporary directory}, served by
+ * memory-mapping the files.  Pages are rendered directly to their files, so the content does not use the heap.
+ * The files are bounded in total size, with least-recently-used snapshots deleted first, and are deleted when
+ * replaced, when the application is stopped, and when left by a previous run of the application.
+ *
+ * @see  WebPage#RESPONSE_SNAPSHOTS_MAX_BYTES_INIT_PARAM
+ *
+ * @author  AO Industries, Inc.
+ */
+final class ResponseSnapshots {
+
+  private static final Logger logger = Logger.getLogger(ResponseSnapshots.class.getName());
+
+  private static final String DIRECTORY_NAME = ResponseSnapshots.class.getName();
+
+  private static final String FILE_PREFIX = "snapshot-";
+
+  /**
+   * The default maximum number of bytes of snapshot files per application.
+   */
+  private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  /**
+   * A single snapshot may use at most this fraction of the maximum.
+   */
+  private static final int MAX_ENTRY_FRACTION = 4;
+
+  private static final ConcurrentMap<ServletContext, ResponseSnapshots> instances = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the snapshots for the given application.
+   */
+  static ResponseSnapshots getInstance(ServletContext servletContext) {
+    return instances.computeIfAbsent(servletContext, ResponseSnapshots::new);
+  }
+
+  /**
+   * Releases the snapshots for the given application, deleting their files.
+   */
+  static void destroy(ServletContext servletContext) {
+    ResponseSnapshots instance = instances.remove(servletContext);
+    if (instance != null) {
+      List<Snapshot> removed;
+      synchronized (instance) {
+        removed = new ArrayList<>(instance.snapshots.values());
+        instance.snapshots.clear();
+        instance.totalBytes = 0;
+      }
+      removed.forEach(instance::release);
+      instance.retryDeletes();
+    }
+  }
+
+  static final class Snapshot {
+
+    private final long lastModified;
+    private final String etag;
+    private final File file;
+    private final MappedByteBuffer content;
+    private final File compressedFile;
+    private final MappedByteBuffer compressedContent;
+
+    private Snapshot(
+        long lastModified,
+        String etag,
+        File file,
+        MappedByteBuffer content,
+        File compressedFile,
+        MappedByteBuffer compressedContent
+    ) {
+      this.lastModified = lastModified;
+      this.etag = etag;
+      this.file = file;
+      this.content = content;
+      this.compressedFile = compressedFile;
+      this.compressedContent = compressedContent;
+    }
+
+    /**
+     * Gets the strong entity tag of the content.
+     */
+    String getETag() {
+      return etag;
+    }
+
+    /**
+     * Gets the encoded content.
+     *
+     * @return  a new buffer over the mapped content, positioned at its beginning
+     */
+    ByteBuffer getContent() {
+      return content.duplicate();
+    }
+
+    /**
+     * Gets the length of the content.
+     */
+    int getLength() {
+      return content.capacity();
+    }
+
+    /**
+     * Gets the content compressed.
+     *
+     * @return  a new buffer over the mapped compressed content, positioned at its beginning, or {@code null}
+     *          when compression was not enabled for the snapshot
+     */
+    ByteBuffer getCompressedContent() {
+      return (compressedContent == null) ? null : compressedContent.duplicate();
+    }
+
+    private long size() {
+      return (long) content.capacity() + (compressedContent == null ? 0 : compressedContent.capacity());
+    }
+  }
+
+  /**
+   * Renders a response directly to a new snapshot file.  When closed without being
+   * {@linkplain #finish(long, com.aoapps.web.framework.Compression) finished}, the file is deleted.
+   */
+  final class Capture implements Closeable {
+
+    private final File file;
+    private final MessageDigest digest = ETags.newDigest();
+    private final OutputStream out;
+    private boolean closed;
+    private boolean finished;
+
+    private Capture(File file) throws IOException {
+      this.file = file;
+      this.out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())), digest);
+    }
+
+    /**
+     * Gets the stream that writes the encoded response to the file.
+     */
+    OutputStream getOutputStream() {
+      return out;
+    }
+
+    /**
+     * Completes the file, then maps it along with its compressed form when compression is enabled.
+     * The snapshot is not yet {@linkplain #put(com.aoapps.web.framework.ResponseCache.Key, com.aoapps.web.framework.ResponseSnapshots.Snapshot) stored}.
+     */
+    Snapshot finish(long lastModified, Compression compression) throws IOException {
+      closed = true;
+      out.close();
+      File compressedFile = null;
+      try {
+        MappedByteBuffer mapped = map(file);
+        MappedByteBuffer compressedMapped = null;
+        if (compression.isEnabled()) {
+          compressedFile = File.createTempFile(FILE_PREFIX, ".html.gz", directory);
+          try (
+              InputStream in = Files.newInputStream(file.toPath());
+              OutputStream compressedOut = Files.newOutputStream(compressedFile.toPath());
+              OutputStream gzip = compression.compress(compressedOut)
+          ) {
+            in.transferTo(gzip);
+          }
+          compressedMapped = map(compressedFile);
+        }
+        Snapshot snapshot = new Snapshot(lastModified, ETags.fromDigest(digest), file, mapped, compressedFile, compressedMapped);
+        finished = true;
+        return snapshot;
+      } finally {
+        if (!finished && compressedFile != null) {
+          deleteFile(compressedFile);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (!closed) {
+          closed = true;
+          out.close();
+        }
+      } finally {
+        if (!finished) {
+          deleteFile(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * The directory holding the snapshot files or {@code null} when the application has no temporary directory.
+   */
+  private final File directory;
+
+  private final long maxBytes;
+
+  // All below are guarded by this
+  private final LinkedHashMap<ResponseCache.Key, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  /**
+   * Files that could not be deleted, such as while still mapped on some platforms, retried as snapshots are stored.
+   */
+  private final List<File> undeleted = new ArrayList<>();
+
+  private ResponseSnapshots(ServletContext servletContext) {
+    long max = DEFAULT_MAX_BYTES;
+    String param = servletContext.getInitParameter(WebPage.RESPONSE_SNAPSHOTS_MAX_BYTES_INIT_PARAM);
+    if (param != null && !(param = param.trim()).isEmpty()) {
+      try {
+        max = Long.parseLong(param);
+      } catch (NumberFormatException e) {
+        logger.log(Level.WARNING, "Invalid " + WebPage.RESPONSE_SNAPSHOTS_MAX_BYTES_INIT_PARAM + ", using default: " + param, e);
+      }
+    }
+    this.maxBytes = max;
+    Object tempDir = servletContext.getAttribute(ServletContext.TEMPDIR);
+    if (tempDir instanceof File) {
+      this.directory = new File((File) tempDir, DIRECTORY_NAME);
+      // Delete any files left by a previous run that did not stop cleanly
+      File[] leftover = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX));
+      if (leftover != null) {
+        for (File file : leftover) {
+          deleteFile(file);
+        }
+      }
+    } else {
+      logger.log(Level.WARNING, "No " + ServletContext.TEMPDIR + ", snapshots disabled");
+      this.directory = null;
+    }
+  }
+
+  /**
+   * Checks if snapshots are enabled.
+   */
+  boolean isEnabled() {
+    return directory != null && maxBytes > 0;
+  }
+
+  /**
+   * Gets the snapshot.
+   *
+   * @return  the snapshot or {@code null} when not taken or modified since taken
+   */
+  synchronized Snapshot get(ResponseCache.Key key, long lastModified) {
+    Snapshot snapshot = snapshots.get(key);
+    return (snapshot == null || snapshot.lastModified != lastModified) ? null : snapshot;
+  }
+
+  /**
+   * Starts rendering a new snapshot.
+   */
+  Capture capture() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+    return new Capture(File.createTempFile(FILE_PREFIX, ".html", directory));
+  }
+
+  /**
+   * Stores a snapshot, replacing any previous snapshot and deleting least-recently-used snapshots until within bounds.
+   * A snapshot larger than a fraction of the maximum is not stored.
+   *
+   * @return  {@code true} when stored, or {@code false} when the snapshot must be
+   *          {@linkplain #release(com.aoapps.web.framework.ResponseSnapshots.Snapshot) released} by the caller
+   */
+  boolean put(ResponseCache.Key key, Snapshot snapshot) {
+    if (snapshot.size() > maxBytes / MAX_ENTRY_FRACTION) {
+      return false;
+    }
+    List<Snapshot> removed = new ArrayList<>();
+    synchronized (this) {
+      Snapshot old = snapshots.put(key, snapshot);
+      if (old != null) {
+        totalBytes -= old.size();
+        removed.add(old);
+      }
+      totalBytes += snapshot.size();
+      Iterator<Snapshot> iter = snapshots.values().iterator();
+      while (totalBytes > maxBytes && iter.hasNext()) {
+        Snapshot eldest = iter.next();
+        totalBytes -= eldest.size();
+        iter.remove();
+        removed.add(eldest);
+      }
+    }
+    removed.forEach(this::release);
+    retryDeletes();
+    return true;
+  }
+
+  /**
+   * Deletes the files of a snapshot that is not stored.  Existing mappings remain valid until no longer used.
+   */
+  void release(Snapshot snapshot) {
+    deleteFile(snapshot.file);
+    if (snapshot.compressedFile != null) {
+      deleteFile(snapshot.compressedFile);
+    }
+  }
+
+  /**
+   * Maps a file read-only.
+   */
+  private static MappedByteBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private void deleteFile(File file) {
+    if (!file.delete() && file.exists()) {
+      // May still be mapped on some platforms
+      logger.log(Level.FINE, "Unable to delete, will retry: " + file);
+      synchronized (undeleted) {
+        undeleted.add(file);
+      }
+    }
+  }
+
+  /**
+   * Retries deleting files, leaving any still undeletable to be deleted on exit.
+   */
+  private void retryDeletes() {
+    synchronized (undeleted) {
+      Iterator<File> iter = undeleted.iterator();
+      while (iter.hasNext()) {
+        File file = iter.next();
+        if (file.delete() || !file.exists()) {
+          iter.remove();
+        } else if (!instances.containsValue(this)) {
+          // Destroyed, this is the last chance to delete
+          file.deleteOnExit();
+          iter.remove();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+
+/**
+ * Reuses per-thread scratch buffers for rendering and search.  A buffer is only reused by the thread that released
+ * it, and a thread that needs a second buffer while its own is in use gets a new one.  Buffers that have grown large
+ * are not retained.
+ *
+ * <p>When run on virtual threads, where thread-local buffers are not reused, disable with the system property
+ * {@link WebPage#SCRATCH_BUFFERS_DISABLED_PROPERTY}.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class ScratchBuffers {
+
+  /** Make no instances. */
+  private ScratchBuffers() {
+    throw new AssertionError();
+  }
+
+  private static final boolean ENABLED = !Boolean.getBoolean(WebPage.SCRATCH_BUFFERS_DISABLED_PROPERTY);
+
+  /**
+   * Buffers whose capacity has grown beyond this number of characters or bytes are not retained.
+   */
+  private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+  /**
+   * Exposes the capacity, since a buffer {@linkplain CharArrayWriter#reset() reset} while in use may have grown
+   * much larger than its final size.
+   */
+  private static final class ScratchCharArrayWriter extends CharArrayWriter {
+    private int capacity() {
+      return buf.length;
+    }
+  }
+
+  /**
+   * Exposes the capacity, since a buffer {@linkplain ByteArrayOutputStream#reset() reset} while in use may have grown
+   * much larger than its final size.
+   */
+  private static final class ScratchByteArrayOutputStream extends ByteArrayOutputStream {
+    private int capacity() {
+      return buf.length;
+    }
+  }
+
+  private static final class Holder<B> {
+    private B buffer;
+    private boolean inUse;
+  }
+
+  private static final ThreadLocal<Holder<ScratchCharArrayWriter>> charArrayWriters = ThreadLocal.withInitial(Holder::new);
+
+  private static final ThreadLocal<Holder<ScratchByteArrayOutputStream>> byteArrayOutputStreams = ThreadLocal.withInitial(Holder::new);
+
+  /**
+   * Gets an empty writer, which must be {@linkplain #release(java.io.CharArrayWriter) released} when done.
+   */
+  static CharArrayWriter getCharArrayWriter() {
+    if (ENABLED) {
+      Holder<ScratchCharArrayWriter> holder = charArrayWriters.get();
+      if (!holder.inUse) {
+        ScratchCharArrayWriter buffer = holder.buffer;
+        if (buffer == null) {
+          holder.buffer = buffer = new ScratchCharArrayWriter();
+        } else {
+          buffer.reset();
+        }
+        holder.inUse = true;
+        return buffer;
+      }
+    }
+    return new CharArrayWriter();
+  }
+
+  /**
+   * Releases a writer obtained from {@link #getCharArrayWriter()}.  The writer must not be used after release.
+   */
+  static void release(CharArrayWriter buffer) {
+    if (ENABLED) {
+      Holder<ScratchCharArrayWriter> holder = charArrayWriters.get();
+      if (holder.buffer == buffer) {
+        if (holder.buffer.capacity() > MAX_RETAINED_SIZE) {
+          holder.buffer = null;
+        }
+        holder.inUse = false;
+      }
+    }
+  }
+
+  /**
+   * Gets an empty stream, which must be {@linkplain #release(java.io.ByteArrayOutputStream) released} when done.
+   */
+  static ByteArrayOutputStream getByteArrayOutputStream() {
+    if (ENABLED) {
+      Holder<ScratchByteArrayOutputStream> holder = byteArrayOutputStreams.get();
+      if (!holder.inUse) {
+        ScratchByteArrayOutputStream buffer = holder.buffer;
+        if (buffer == null) {
+          holder.buffer = buffer = new ScratchByteArrayOutputStream();
+        } else {
+          buffer.reset();
+        }
+        holder.inUse = true;
+        return buffer;
+      }
+    }
+    return new ByteArrayOutputStream();
+  }
+
+  /**
+   * Releases a stream obtained from {@link #getByteArrayOutputStream()}.  The stream must not be used after release.
+   */
+  static void release(ByteArrayOutputStream buffer) {
+    if (ENABLED) {
+      Holder<ScratchByteArrayOutputStream> holder = byteArrayOutputStreams.get();
+      if (holder.buffer == buffer) {
+        if (holder.buffer.capacity() > MAX_RETAINED_SIZE) {
+          holder.buffer = null;
+        }
+        holder.inUse = false;
+      }
+    }
+  }
+}
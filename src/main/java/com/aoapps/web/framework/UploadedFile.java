@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2009, 2015, 2016, 2019, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2000-2009, 2015, 2016, 2019, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -24,23 +24,35 @@
 package com.aoapps.web.framework;
 
 import com.aoapps.security.Identifier;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 
 /**
  * An <code>UploadedFile</code> is a file that has been uploaded by a client request.
  *
+ * <p>Uploaded files of {@link KeyedWebSiteUser} owners are recorded in an {@linkplain UploadedFileJournal append-only journal},
+ * so they survive restarts.  After a restart, the {@linkplain #getOwner() owner} is set on access by a user with the
+ * same {@linkplain KeyedWebSiteUser#getUserKey() user key}.</p>
+ *
  * @author  AO Industries, Inc.
  */
-// TODO: This is not Serializable.  How is it persisted through reboots?
 public final class UploadedFile {
 
   private final Identifier id;
   private final String filename;
   private final File storageFile;
   private final long createTime;
-  private final WebSiteUser owner;
+  private final String ownerKey;
+  private volatile WebSiteUser owner;
   private final String contentType;
 
+  /**
+   * Set once the content has been completely written, before which the file is never journaled.
+   */
+  private volatile boolean completed;
+
   private static class LastAccessLock {
     // Empty lock class to help heap profile
   }
@@ -56,10 +68,108 @@ public final class UploadedFile {
     this.filename = filename;
     this.storageFile = storageFile;
     this.createTime = this.lastAccessed = System.currentTimeMillis();
+    this.ownerKey = (owner instanceof KeyedWebSiteUser) ? ((KeyedWebSiteUser) owner).getUserKey() : null;
     this.owner = owner;
     this.contentType = contentType;
   }
 
+  /**
+   * Restores an upload file from the journal.  The owner is not known until
+   * {@linkplain #isOwner(com.aoapps.web.framework.WebSiteUser) rebound}.
+   */
+  private UploadedFile(String filename, File storageFile, long createTime, String ownerKey, String contentType) {
+    this.id = new Identifier(storageFile.getName());
+    this.filename = filename;
+    this.storageFile = storageFile;
+    this.createTime = createTime;
+    this.lastAccessed = System.currentTimeMillis();
+    this.ownerKey = ownerKey;
+    this.owner = null;
+    this.contentType = contentType;
+    this.completed = true;
+  }
+
+  private static void writeNullUTF(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullUTF(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * Writes the journal record for this file.  This does not update the last access time.
+   *
+   * @param  uploadDir  the upload directory, to which the storage file is written relative
+   *
+   * @see  #readJournalRecord(java.io.DataInput, java.io.File)
+   */
+  void writeJournalRecord(DataOutput out, File uploadDir) throws IOException {
+    out.writeUTF(uploadDir.toPath().relativize(storageFile.toPath()).toString());
+    out.writeLong(createTime);
+    out.writeUTF(ownerKey);
+    writeNullUTF(out, filename);
+    writeNullUTF(out, contentType);
+  }
+
+  /**
+   * Reads a journal record written by {@link #writeJournalRecord(java.io.DataOutput, java.io.File)}.
+   *
+   * @param  uploadDir  the upload directory, to which the storage file was written relative
+   */
+  static UploadedFile readJournalRecord(DataInput in, File uploadDir) throws IOException {
+    File storageFile = new File(uploadDir, in.readUTF());
+    long createTime = in.readLong();
+    String ownerKey = in.readUTF();
+    String filename = readNullUTF(in);
+    String contentType = readNullUTF(in);
+    return new UploadedFile(filename, storageFile, createTime, ownerKey, contentType);
+  }
+
+  /**
+   * Marks the content as completely written, after which the file may be journaled.
+   */
+  void setCompleted() {
+    completed = true;
+  }
+
+  /**
+   * Checks if this file is recorded in the journal, which requires an owner with a
+   * {@linkplain KeyedWebSiteUser#getUserKey() user key} and the content {@linkplain #setCompleted() completely written}.
+   */
+  boolean isJournaled() {
+    return ownerKey != null && completed;
+  }
+
+  /**
+   * Gets the ID without updating the last access time.
+   */
+  Identifier getIdNoTouch() {
+    return id;
+  }
+
+  /**
+   * Checks if the given user owns this file.  Files of {@link KeyedWebSiteUser} owners, including those restored
+   * from the journal, are owned by any user with a matching {@linkplain KeyedWebSiteUser#getUserKey() user key},
+   * so the same user logged in again with a new instance is still the owner.
+   */
+  boolean isOwner(WebSiteUser user) {
+    if (ownerKey != null) {
+      if (
+          !(user instanceof KeyedWebSiteUser)
+              || !ownerKey.equals(((KeyedWebSiteUser) user).getUserKey())
+      ) {
+        return false;
+      }
+      owner = user;
+      return true;
+    }
+    return owner.equals(user);
+  }
+
   /**
    * Gets the ID for the upload file.
    */
@@ -102,6 +212,8 @@ public final class UploadedFile {
 
   /**
    * Gets the owner for the upload file.
+   *
+   * @return  the owner or {@code null} when restored after a restart and not yet accessed by its owner
    */
   public WebSiteUser getOwner() {
     synchronized (lastAccessLock) {
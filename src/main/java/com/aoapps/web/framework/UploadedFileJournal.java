@@ -0,0 +1,325 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import com.aoapps.security.Identifier;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the {@link UploadedFile} registry, so pending uploads survive restarts.
+ *
+ * <p>Records are written without waiting for the disk.  A background thread forces the journal to disk
+ * at most once every {@link #SYNC_INTERVAL} milliseconds, batching the cost of <code>fsync</code>
+ * across all uploads in that interval.</p>
+ *
+ * <p>Each record is its payload length, the payload, then a CRC-32 of the payload.  Replay stops at the
+ * first torn or corrupt record, discarding it and anything after it.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class UploadedFileJournal implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(UploadedFileJournal.class.getName());
+
+  /**
+   * The name of the journal within the upload directory.
+   */
+  static final String FILENAME = "uploads.journal";
+
+  private static final String COMPACT_FILENAME = FILENAME + ".new";
+
+  /**
+   * The maximum number of milliseconds between appending a record and forcing it to disk.
+   */
+  private static final long SYNC_INTERVAL = 1000;
+
+  /**
+   * Records larger than this are considered corrupt.
+   */
+  private static final int MAX_RECORD_LENGTH = 4 * 65536;
+
+  /**
+   * Compacts once the journal holds this many more records than live entries.
+   */
+  private static final int COMPACT_THRESHOLD = 1000;
+
+  private static final byte ADD = 'A';
+  private static final byte REMOVE = 'R';
+
+  /**
+   * Replays the journal into the given map, then compacts the journal to only the entries whose
+   * storage files still exist.
+   *
+   * @param  uploadDir  the upload directory containing the journal
+   * @param  uploadedFiles  the map to restore entries into
+   */
+  static UploadedFileJournal open(File uploadDir, Map<Identifier, UploadedFile> uploadedFiles) throws IOException {
+    File file = new File(uploadDir, FILENAME);
+    Map<Identifier, UploadedFile> replayed = new LinkedHashMap<>();
+    if (file.exists()) {
+      replay(file, uploadDir, replayed);
+    }
+    replayed.values().removeIf(uf -> !uf.getStorageFile().isFile());
+    uploadedFiles.putAll(replayed);
+    UploadedFileJournal journal = new UploadedFileJournal(uploadDir, file);
+    journal.compact(replayed.values());
+    journal.syncThread.start();
+    return journal;
+  }
+
+  private static void replay(File file, File uploadDir, Map<Identifier, UploadedFile> replayed) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      CRC32 crc = new CRC32();
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          // End of journal
+          break;
+        }
+        try {
+          if (length <= 0 || length > MAX_RECORD_LENGTH) {
+            logger.log(Level.WARNING, "Invalid record length, discarding remainder of journal: {0}", length);
+            break;
+          }
+          byte[] payload = new byte[length];
+          in.readFully(payload);
+          long expected = in.readInt() & 0xffffffffL;
+          crc.reset();
+          crc.update(payload, 0, length);
+          if (crc.getValue() != expected) {
+            logger.log(Level.WARNING, "Checksum mismatch, discarding remainder of journal: {0}", file);
+            break;
+          }
+          DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+          byte type = record.readByte();
+          if (type == ADD) {
+            UploadedFile uf = UploadedFile.readJournalRecord(record, uploadDir);
+            replayed.put(uf.getIdNoTouch(), uf);
+          } else if (type == REMOVE) {
+            replayed.remove(new Identifier(record.readUTF()));
+          } else {
+            logger.log(Level.WARNING, "Unexpected record type, discarding remainder of journal: {0}", type);
+            break;
+          }
+        } catch (EOFException e) {
+          logger.log(Level.WARNING, "Torn record, discarding remainder of journal: {0}", file);
+          break;
+        }
+      }
+    }
+  }
+
+  private final File uploadDir;
+  private final File file;
+  private final Thread syncThread;
+
+  // All below are guarded by this
+  private FileChannel channel;
+  private int records;
+  private boolean dirty;
+
+  private UploadedFileJournal(File uploadDir, File file) {
+    this.uploadDir = uploadDir;
+    this.file = file;
+    this.syncThread = new Thread(this::syncLoop, UploadedFileJournal.class.getName() + ".syncThread");
+    this.syncThread.setDaemon(true);
+  }
+
+  @SuppressWarnings("SleepWhileInLoop")
+  private void syncLoop() {
+    final Thread currentThread = Thread.currentThread();
+    while (!currentThread.isInterrupted()) {
+      try {
+        Thread.sleep(SYNC_INTERVAL);
+        sync();
+      } catch (InterruptedException e) {
+        // Restore the interrupted status
+        currentThread.interrupt();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, null, e);
+      }
+    }
+  }
+
+  /**
+   * Forces any appended records to disk.  The force is performed outside the lock, so appends are not
+   * blocked by the disk.
+   */
+  private void sync() throws IOException {
+    FileChannel toForce;
+    synchronized (this) {
+      if (!dirty || channel == null) {
+        return;
+      }
+      toForce = channel;
+      dirty = false;
+    }
+    try {
+      toForce.force(false);
+    } catch (ClosedChannelException e) {
+      // Replaced by compaction or closed, which both force before closing
+    }
+  }
+
+  private static ByteBuffer frame(ByteArrayOutputStream payload) {
+    byte[] bytes = payload.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + bytes.length + Integer.BYTES);
+    buffer.putInt(bytes.length).put(bytes).putInt((int) crc.getValue());
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private ByteBuffer addRecord(UploadedFile uf) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bout)) {
+      out.writeByte(ADD);
+      uf.writeJournalRecord(out, uploadDir);
+    }
+    return frame(bout);
+  }
+
+  private synchronized void append(ByteBuffer record) throws IOException {
+    if (channel == null) {
+      throw new ClosedChannelException();
+    }
+    writeFully(channel, record);
+    records++;
+    dirty = true;
+  }
+
+  /**
+   * Records a newly uploaded file.
+   */
+  void add(UploadedFile uf) throws IOException {
+    append(addRecord(uf));
+  }
+
+  /**
+   * Records the removal of an uploaded file.
+   */
+  void remove(Identifier id) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bout)) {
+      out.writeByte(REMOVE);
+      out.writeUTF(id.toString());
+    }
+    append(frame(bout));
+  }
+
+  /**
+   * Compacts the journal when it holds too many records that are no longer live.
+   *
+   * @param  live  the live entries
+   */
+  synchronized void compactIfNeeded(Collection<UploadedFile> live) throws IOException {
+    long journaled = live.stream().filter(UploadedFile::isJournaled).count();
+    if (records - journaled >= COMPACT_THRESHOLD) {
+      compact(live);
+    }
+  }
+
+  /**
+   * Rewrites the journal to contain only the live entries, atomically replacing the current journal.
+   *
+   * @param  live  the live entries
+   */
+  private synchronized void compact(Collection<UploadedFile> live) throws IOException {
+    File compactFile = new File(uploadDir, COMPACT_FILENAME);
+    int newRecords = 0;
+    try (
+        FileChannel out = FileChannel.open(
+            compactFile.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        )
+    ) {
+      for (UploadedFile uf : live) {
+        if (uf.isJournaled()) {
+          writeFully(out, addRecord(uf));
+          newRecords++;
+        }
+      }
+      out.force(true);
+    }
+    if (channel != null) {
+      channel.force(false);
+      channel.close();
+      channel = null;
+    }
+    Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    records = newRecords;
+    dirty = false;
+  }
+
+  /**
+   * Stops the background sync, then forces and closes the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    syncThread.interrupt();
+    synchronized (this) {
+      if (channel != null) {
+        try {
+          channel.force(false);
+        } finally {
+          channel.close();
+          channel = null;
+        }
+      }
+    }
+  }
+}
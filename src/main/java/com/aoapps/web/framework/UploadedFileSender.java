@@ -0,0 +1,189 @@
+/*
+ * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of ao-web-framework.
+ *
+ * ao-web-framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ao-web-framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ao-web-framework.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoapps.web.framework;
+
+import com.aoapps.net.URIEncoder;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends an {@link UploadedFile} back to the client without buffering it on the heap.
+ *
+ * <ul>
+ *   <li>Sets <code>Content-Type</code>, <code>Content-Length</code>, <code>Last-Modified</code>, and a strong
+ *       <code>ETag</code> derived from the file metadata.</li>
+ *   <li>Answers <code>If-None-Match</code> with <code>304 Not Modified</code>.</li>
+ *   <li>Supports a single <code>Range</code>, honoring <code>If-Range</code>.  Requests for multiple ranges
+ *       are answered with the full content, as permitted by
+ *       <a href="https://datatracker.ietf.org/doc/html/rfc7233#section-3.1">RFC 7233</a>.</li>
+ *   <li>When the container supports it (Tomcat <code>sendfile</code>), hands the file to the container for
+ *       zero-copy transfer.  Otherwise, streams the file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.</li>
+ * </ul>
+ *
+ * <p>The caller is responsible for access control, typically by obtaining the file through
+ * {@link WebSiteRequest#getUploadedFile(com.aoapps.web.framework.WebSiteUser, com.aoapps.security.Identifier, javax.servlet.ServletContext)}.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class UploadedFileSender {
+
+  /** Make no instances. */
+  private UploadedFileSender() {
+    throw new AssertionError();
+  }
+
+  private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+  /**
+   * Gets the strong entity tag for an uploaded file.  Uploaded files are never modified in-place, so the
+   * ID, length, and modification time uniquely identify the content.
+   */
+  public static String getETag(UploadedFile uf) {
+    File file = uf.getStorageFile();
+    return '"' + uf.getId().toString()
+        + '-' + Long.toHexString(file.length())
+        + '-' + Long.toHexString(file.lastModified())
+        + '"';
+  }
+
+  /**
+   * Sends the uploaded file.
+   *
+   * @param  asAttachment  when {@code true}, sends <code>Content-Disposition: attachment</code> with the submitted
+   *                       filename so browsers download instead of display the file
+   */
+  public static void send(UploadedFile uf, HttpServletRequest req, HttpServletResponse resp, boolean asAttachment) throws IOException {
+    File file = uf.getStorageFile();
+    if (!file.isFile()) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    final String etag = getETag(uf);
+
+    resp.setHeader("ETag", etag);
+    resp.setDateHeader("Last-Modified", lastModified);
+    resp.setHeader("Accept-Ranges", "bytes");
+    if (ETags.matches(req.getHeader("If-None-Match"), etag)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    String contentType = uf.getContentType();
+    resp.setContentType(contentType == null ? "application/octet-stream" : contentType);
+    if (asAttachment) {
+      String filename = uf.getFilename();
+      resp.setHeader(
+          "Content-Disposition",
+          filename == null ? "attachment" : ("attachment; filename*=UTF-8''" + URIEncoder.encodeURIComponent(filename))
+      );
+    }
+
+    // Parse any single range
+    long start = 0;
+    long end = length - 1;
+    String range = req.getHeader("Range");
+    if (range != null) {
+      String ifRange = req.getHeader("If-Range");
+      if (ifRange != null && !ETags.matchesIfRange(ifRange, etag)) {
+        // Entity changed, send all
+        range = null;
+      }
+    }
+    if (range != null && range.startsWith("bytes=") && range.indexOf(',') == -1) {
+      String spec = range.substring("bytes=".length()).trim();
+      int dash = spec.indexOf('-');
+      try {
+        if (dash == 0) {
+          // Suffix range
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            sendRangeNotSatisfiable(resp, length);
+            return;
+          }
+          start = Math.max(0, length - suffix);
+        } else if (dash > 0) {
+          start = Long.parseLong(spec.substring(0, dash));
+          if (dash < spec.length() - 1) {
+            end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+          }
+          if (start >= length || start > end) {
+            sendRangeNotSatisfiable(resp, length);
+            return;
+          }
+        }
+        // else: No dash, ignore malformed range and send all
+      } catch (NumberFormatException e) {
+        // Ignore malformed range and send all
+        start = 0;
+        end = length - 1;
+      }
+      if (start != 0 || end != length - 1) {
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setHeader("Content-Range", "bytes " + start + '-' + end + '/' + length);
+      }
+    }
+    final long count = end - start + 1;
+    resp.setContentLengthLong(count);
+    if ("HEAD".equals(req.getMethod()) || count <= 0) {
+      return;
+    }
+
+    if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+      // Let the container transfer directly from the file
+      req.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+      req.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+      req.setAttribute(SENDFILE_END_ATTRIBUTE, end + 1);
+      return;
+    }
+    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+      long position = start;
+      long remaining = count;
+      while (remaining > 0) {
+        long transferred = in.transferTo(position, remaining, out);
+        if (transferred <= 0) {
+          throw new EOFException("File truncated while sending: " + file);
+        }
+        position += transferred;
+        remaining -= transferred;
+      }
+    }
+  }
+
+  private static void sendRangeNotSatisfiable(HttpServletResponse resp, long length) throws IOException {
+    resp.setHeader("Content-Range", "bytes */" + length);
+    resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+}
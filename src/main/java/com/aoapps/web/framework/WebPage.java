@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2013, 2015, 2016, 2019, 2020, 2021, 2022, 2024, 2025  AO Industries, Inc.
+ * Copyright (C) 2000-2013, 2015, 2016, 2019, 2020, 2021, 2022, 2024, 2025, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -46,11 +46,18 @@ import com.aoapps.servlet.http.HttpServletUtil;
 import com.aoapps.web.resources.registry.Registry;
 import com.aoapps.web.resources.servlet.PageServlet;
 import com.aoapps.web.resources.servlet.RegistryEE;
+import java.io.ByteArrayOutputStream;
 import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -62,13 +69,18 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import javax.security.auth.login.LoginException;
+import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
 
 /**
  * The main web page provides the overall layout of the site.  The rest of
@@ -91,6 +103,56 @@ public abstract class WebPage extends PageServlet {
 
   private static final long serialVersionUID = 1L;
 
+  private static final Logger logger = Logger.getLogger(WebPage.class.getName());
+
+  /**
+   * The context init parameter that configures the maximum number of bytes held by the
+   * {@linkplain #isResponseCacheable(com.aoapps.web.framework.WebSiteRequest) response cache}.
+   * Defaults to 16 MiB.  A value of zero disables the cache.
+   */
+  public static final String RESPONSE_CACHE_MAX_BYTES_INIT_PARAM = WebPage.class.getName() + ".responseCache.maxBytes";
+
+  /**
+   * The context init parameter that configures the maximum number of bytes of files held by
+   * {@linkplain HtmlInputStreamPage#isSnapshot(com.aoapps.web.framework.WebSiteRequest) response snapshots}.
+   * Defaults to 256 MiB.  A value of zero disables snapshots.
+   */
+  public static final String RESPONSE_SNAPSHOTS_MAX_BYTES_INIT_PARAM = WebPage.class.getName() + ".responseSnapshots.maxBytes";
+
+  /**
+   * The context init parameter that, when {@code "true"}, watches <code>/WEB-INF/classes</code> and updates
+   * {@link #getClassLastModified()} when classes are redeployed without restarting the application.
+   * Otherwise, the class last modified times are only checked once.
+   */
+  public static final String CLASS_LAST_MODIFIED_WATCH_INIT_PARAM = WebPage.class.getName() + ".classLastModified.watch";
+
+  /**
+   * The context init parameter that configures the <code>gzip</code> compression level of page output, from
+   * {@code 1} (fastest) to {@code 9} (smallest).  Defaults to {@code 0}, which disables compression.
+   * Compression is negotiated with each client by <code>Accept-Encoding</code>.
+   */
+  public static final String COMPRESSION_LEVEL_INIT_PARAM = WebPage.class.getName() + ".compression.level";
+
+  /**
+   * The context init parameter that configures the minimum number of bytes of page output before it is compressed.
+   * Defaults to {@code 1024}.
+   *
+   * @see  #COMPRESSION_LEVEL_INIT_PARAM
+   */
+  public static final String COMPRESSION_MIN_BYTES_INIT_PARAM = WebPage.class.getName() + ".compression.minBytes";
+
+  /**
+   * The context init parameter that configures the maximum number of bytes of file content held in memory
+   * by {@link FilePage}.  Defaults to {@code 0}, which disables the cache.
+   */
+  public static final String CONTENT_CACHE_MAX_BYTES_INIT_PARAM = WebPage.class.getName() + ".contentCache.maxBytes";
+
+  /**
+   * The system property that, when {@code "true"}, disables the reuse of per-thread scratch buffers for rendering and
+   * search.  Thread-local buffers are not reused on virtual threads, so this should be set when using them.
+   */
+  public static final String SCRATCH_BUFFERS_DISABLED_PROPERTY = WebPage.class.getName() + ".scratchBuffers.disabled";
+
   /**
    * The time that the servlet environment started.
    */
@@ -124,6 +186,12 @@ public abstract class WebPage extends PageServlet {
    */
   private WebPage[] cachedChildren;
 
+  /**
+   * The time remembered by {@link #getLastModifiedRecursive(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}
+   * or {@code null} when not yet determined or invalidated.
+   */
+  private volatile RecursiveLastModified recursiveLastModified;
+
   /**
    * The last modified time of the content in the search index or <code>-1</code> if not indexed.
    */
@@ -245,19 +313,20 @@ public abstract class WebPage extends PageServlet {
   @Override
   protected final long getLastModified(HttpServletRequest httpReq) {
     try {
-      WebSiteRequest req = getWebSiteRequest(httpReq);
-      WebPage page = getWebPage(getClass(), req);
+      ResolvedRequest resolved = resolve(httpReq);
+      WebSiteRequest req = resolved.req;
+      WebPage page = resolved.page;
 
       if (Boolean.parseBoolean(req.getParameter(WebSiteRequest.LOGIN_REQUESTED))) {
         return -1;
       }
       WebSiteUser user;
       try {
-        user = req.getWebSiteUser(null);
+        user = resolved.getWebSiteUser(null);
       } catch (LoginException err) {
         return -1;
       }
-      if (!page.canAccess(user)) {
+      if (!resolved.canAccess(user)) {
         return -1;
       }
 
@@ -287,18 +356,12 @@ public abstract class WebPage extends PageServlet {
    * Gets the last modified time of the java class file.  If the class file is
    * unavailable, it defaults to the time the servlets were loaded.
    *
+   * <p>The time is only checked once per class, see {@link #CLASS_LAST_MODIFIED_WATCH_INIT_PARAM}.</p>
+   *
    * @see  #getUptime()
    */
   protected final long getClassLastModified() throws ServletException {
-    String dir = getServletContext().getRealPath("/WEB-INF/classes");
-    if (dir != null && dir.length() > 0) {
-      // Try to get from the class file
-      long lastMod = new File(dir, getClass().getName().replace('.', File.separatorChar) + ".class").lastModified();
-      if (lastMod != 0 && lastMod != -1) {
-        return lastMod;
-      }
-    }
-    return getUptime();
+    return ClassLastModified.getInstance(getServletContext()).getLastModified(getClass());
   }
 
   /**
@@ -323,40 +386,107 @@ public abstract class WebPage extends PageServlet {
     return mostRecent;
   }
 
+  /**
+   * The time remembered for {@link #getLastModifiedRecursive(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}.
+   */
+  private static final class RecursiveLastModified {
+
+    private final long time;
+    private final long computed;
+
+    /**
+     * The time this result expires, which is no later than the expiration of any remembered result it includes,
+     * or {@link Long#MAX_VALUE} when it includes no remembered results.
+     */
+    private final long expires;
+
+    private RecursiveLastModified(long time, long computed, long expires) {
+      this.time = time;
+      this.computed = computed;
+      this.expires = expires;
+    }
+  }
+
   /**
    * Recursively gets the most recent modification time.
+   *
+   * <p>Pages that {@linkplain #getLastModifiedRecursiveTtl() opt in} remember the time for their part of the tree,
+   * until expired or {@linkplain #invalidateLastModifiedRecursive() invalidated}, so repeated calls do not walk the tree.
+   * A remembered time expires no later than any remembered time of the pages below it, so a result is never older
+   * than a single time-to-live.</p>
    */
   public final long getLastModifiedRecursive(WebSiteRequest req, HttpServletResponse resp) throws ServletException {
+    return getRecursiveLastModified(req, resp, System.currentTimeMillis()).time;
+  }
+
+  private RecursiveLastModified getRecursiveLastModified(WebSiteRequest req, HttpServletResponse resp, long now) throws ServletException {
+    RecursiveLastModified remembered = recursiveLastModified;
+    if (remembered != null && now < remembered.expires && now >= remembered.computed) {
+      return remembered;
+    }
     long time = getLastModified(req, resp);
+    long ttl = getLastModifiedRecursiveTtl();
+    long expires = (ttl > 0) ? (now + ttl) : Long.MAX_VALUE;
     WebPage[] children = getCachedChildren(req, resp);
     int len = children.length;
     for (int c = 0; c < len; c++) {
-      long time2 = children[c].getLastModifiedRecursive(req, resp);
-      if (time2 > time) {
-        time = time2;
+      RecursiveLastModified child = children[c].getRecursiveLastModified(req, resp, now);
+      if (child.time > time) {
+        time = child.time;
+      }
+      if (child.expires < expires) {
+        expires = child.expires;
       }
     }
-    return time;
+    RecursiveLastModified result = new RecursiveLastModified(time, now, expires);
+    if (ttl > 0 && expires > now) {
+      recursiveLastModified = result;
+    }
+    return result;
+  }
+
+  /**
+   * Gets the number of milliseconds the result of
+   * {@link #getLastModifiedRecursive(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}
+   * for this page and the pages below it is remembered.  Defaults to {@code 0}, which does not remember the result.
+   *
+   * <p>The result is shared by all requests, so only enable when {@link #getLastModified(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}
+   * of this page and all pages below it does not depend on the request.</p>
+   */
+  protected long getLastModifiedRecursiveTtl() {
+    return 0;
+  }
+
+  /**
+   * Forgets the remembered {@link #getLastModifiedRecursive(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}
+   * of this page and all of its {@linkplain #getParent() parents}.  Pages should call this when their content changes.
+   */
+  public void invalidateLastModifiedRecursive() throws ServletException {
+    WebPage page = this;
+    while (page != null) {
+      page.recursiveLastModified = null;
+      page = page.getParent();
+    }
   }
 
   /**
    * Recursively gets the most recent modification time of a file or directory.
+   * Directories are tracked from file system events, so only the first call walks the tree.
    */
   public static long getLastModifiedRecursive(File file) {
-    long time = file.lastModified();
     if (file.isDirectory()) {
-      String[] list = file.list();
-      if (list != null) {
-        int len = list.length;
-        for (int c = 0; c < len; c++) {
-          long time2 = getLastModifiedRecursive(new File(file, list[c]));
-          if (time2 > time) {
-            time = time2;
-          }
-        }
-      }
+      return DirectoryLastModified.getInstance(file).getLastModified();
     }
-    return time;
+    return file.lastModified();
+  }
+
+  /**
+   * Stops tracking a directory for {@link #getLastModifiedRecursive(java.io.File)}, releasing its file system
+   * registrations.  A directory used again is scanned anew.  All directories are released when the application
+   * is stopped.
+   */
+  public static void releaseLastModifiedRecursive(File directory) {
+    DirectoryLastModified.release(directory);
   }
 
   /**
@@ -418,10 +548,77 @@ public abstract class WebPage extends PageServlet {
     return (req == null) ? false : DocumentEE.getIndent(getServletContext(), req);
   }
 
+  /**
+   * Gets the size of the response buffer for this page, in bytes.  A larger buffer sends large pages in fewer,
+   * larger chunks, while a smaller buffer starts sending sooner.  Defaults to {@code 0}, which uses the
+   * container's buffer size.
+   *
+   * @see  ServletResponse#setBufferSize(int)
+   */
+  protected int getResponseBufferSize(WebSiteRequest req) throws ServletException {
+    return 0;
+  }
+
+  /**
+   * Determines if the document is sent to the client once the layout has written the <code>&lt;head&gt;</code> and
+   * the layout chrome before the page content, so browsers can fetch resources while the page content is produced.
+   * Defaults to {@code false}.
+   *
+   * <p>Once flushed, the response is committed: its status and headers can no longer change, and an error while
+   * producing the page content cannot send an error page.  The document is only flushed for successful responses
+   * written directly to the client; it is never flushed for {@linkplain #isResponseCacheable(com.aoapps.web.framework.WebSiteRequest) cached responses},
+   * included pages, or error responses.  When the page content fails after flushing, the exception is logged and
+   * propagated without completing any compressed output, leaving the container to abort the response.</p>
+   *
+   * @see  WebPageLayout#doPage(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPage, com.aoapps.html.servlet.DocumentEE, java.lang.String, com.aoapps.servlet.function.ServletConsumerE)
+   */
+  protected boolean isFlushHeadEarly(WebSiteRequest req) throws ServletException {
+    return false;
+  }
+
+  /**
+   * Flushes the document written so far when {@linkplain #isFlushHeadEarly(com.aoapps.web.framework.WebSiteRequest) enabled}.
+   * Called by the layout after starting the page and before the page content.
+   */
+  final void flushHeadEarly(WebSiteRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    if (
+        resp.getStatus() == HttpServletResponse.SC_OK
+            && req.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI) == null
+            && isFlushHeadEarly(req)
+    ) {
+      ResolvedRequest resolved = RESOLVED_REQUEST_ATTRIBUTE.context(req).get();
+      if (resolved != null && resolved.responseWriter != null) {
+        resolved.responseWriter.flush();
+        resp.flushBuffer();
+        resolved.flushedEarly = true;
+      }
+    }
+  }
+
+  /**
+   * Applies the {@linkplain #getResponseBufferSize(com.aoapps.web.framework.WebSiteRequest) response buffer size}
+   * and clears the output buffer.  Once the response is committed, output already sent cannot be cleared, so the
+   * buffer is left as-is.
+   */
+  private void prepareResponseBuffer(WebSiteRequest req, HttpServletResponse resp) throws ServletException {
+    if (!resp.isCommitted()) {
+      int bufferSize = getResponseBufferSize(req);
+      if (bufferSize > 0 && bufferSize != resp.getBufferSize()) {
+        try {
+          resp.setBufferSize(bufferSize);
+        } catch (IllegalStateException e) {
+          // Output already written, keep the current buffer
+        }
+      }
+      resp.resetBuffer();
+    }
+  }
+
   /**
    * Prepares for output and returns the {@link DocumentEE}.
    * <ol>
-   *   <li>{@linkplain ServletResponse#resetBuffer() clears the output buffer}.</li>
+   *   <li>Sets the {@linkplain #getResponseBufferSize(com.aoapps.web.framework.WebSiteRequest) response buffer size}
+   *       and {@linkplain ServletResponse#resetBuffer() clears the output buffer}, unless already committed.</li>
    *   <li>Sets the {@linkplain ServletResponse#setContentType(java.lang.String) response content type}.</li>
    *   <li>Sets the {@linkplain ServletResponse#setCharacterEncoding(java.lang.String) response character encoding}
    *       to {@linkplain AnyDocument#ENCODING the default <code>UTF-8</code>}.</li>
@@ -436,8 +633,21 @@ public abstract class WebPage extends PageServlet {
    * @see #setHeaders(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)
    */
   protected DocumentEE getDocument(WebSiteRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    return getDocument(req, resp, null);
+  }
+
+  /**
+   * Prepares for output and returns the {@link DocumentEE} writing to the given writer.
+   *
+   * @param  out  the writer to send output to or {@code null} for the {@linkplain ServletResponse#getWriter() response writer},
+   *              which is compressed when negotiated with the client, or encoded to the
+   *              {@linkplain ServletResponse#getOutputStream() response stream} when used by the page
+   *
+   * @see  #getDocument(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)
+   */
+  protected DocumentEE getDocument(WebSiteRequest req, HttpServletResponse resp, Writer out) throws ServletException, IOException {
     // Clear the output buffer
-    resp.resetBuffer();
+    prepareResponseBuffer(req, resp);
     // Set the content type
     Serialization serialization = getSerialization(req);
     final Charset charset = AnyDocument.ENCODING;
@@ -449,19 +659,134 @@ public abstract class WebPage extends PageServlet {
     // Set additional headers
     setHeaders(req, resp);
     Doctype doctype = getDoctype(req); // Lookup once here for constant value.  Do not inline into the anonymous class below.
+    ResolvedRequest resolved = RESOLVED_REQUEST_ATTRIBUTE.context(req).get();
+    Writer responseWriter = null;
+    OutputStream responseStream = null;
+    if (out == null) {
+      Compression.CompressingOutputStream compressed = getCompressingOutputStream(req, resp);
+      if (compressed != null) {
+        out = new OutputStreamWriter(compressed, charset);
+        compressed.setWriter(out);
+        responseStream = compressed;
+      } else if (
+          resolved != null
+              // Included responses may already be using the response writer
+              && req.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI) == null
+              && isResponseStreamUsed(req)
+      ) {
+        responseStream = resp.getOutputStream();
+        out = resolved.streamWriter;
+        if (out == null) {
+          resolved.streamWriter = out = new OutputStreamWriter(responseStream, charset);
+        }
+      } else {
+        out = resp.getWriter();
+      }
+      responseWriter = out;
+    }
+    if (resolved != null) {
+      resolved.responseWriter = responseWriter;
+      resolved.responseStream = responseStream;
+    }
     return new DocumentEE(
         resp,
         new EncodingContextEE(doctype, serialization, charset, resp),
-        resp.getWriter(),
+        out,
         getAutonli(req),
         getIndent(req)
     );
   }
 
+  /**
+   * Determines if the page writes bytes directly to the response between its characters, in which case
+   * {@link #getDocument(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}
+   * encodes to the {@linkplain ServletResponse#getOutputStream() response stream} instead of using the
+   * {@linkplain ServletResponse#getWriter() response writer}.  Defaults to {@code false}.
+   *
+   * <p>Since the response writer is then unavailable, the page is given a
+   * {@linkplain #getStreamWriterResponse(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse) response}
+   * whose writer shares the document's encoding to the stream, and a failed request that is not yet committed is
+   * reset for the error page.</p>
+   *
+   * @see  #getResponseStream(com.aoapps.web.framework.WebSiteRequest)
+   */
+  boolean isResponseStreamUsed(WebSiteRequest req) throws ServletException {
+    return false;
+  }
+
+  /**
+   * Gets the response the document of this page is written to.  When the page
+   * {@linkplain #isResponseStreamUsed(com.aoapps.web.framework.WebSiteRequest) uses the response stream},
+   * the response is wrapped so anything else getting the response writer, such as the layout, writes through the
+   * document's writer instead of failing.
+   */
+  private HttpServletResponse getStreamWriterResponse(WebSiteRequest req, HttpServletResponse resp) throws ServletException {
+    ResolvedRequest resolved = RESOLVED_REQUEST_ATTRIBUTE.context(req).get();
+    if (resolved == null || !isResponseStreamUsed(req)) {
+      return resp;
+    }
+    return new StreamWriterResponse(resp, resolved);
+  }
+
+  /**
+   * Shares the writer encoding to the response stream with anything else writing the response, since the
+   * response writer is unavailable once the stream is used.
+   */
+  private static class StreamWriterResponse extends HttpServletResponseWrapper {
+
+    private final ResolvedRequest resolved;
+    private PrintWriter writer;
+
+    private StreamWriterResponse(HttpServletResponse resp, ResolvedRequest resolved) {
+      super(resp);
+      this.resolved = resolved;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      Writer streamWriter = resolved.streamWriter;
+      if (streamWriter == null) {
+        // Compressed or not yet started, the response writer is still available
+        return super.getWriter();
+      }
+      if (writer == null) {
+        writer = new PrintWriter(streamWriter);
+      }
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      Writer streamWriter = resolved.streamWriter;
+      if (streamWriter != null) {
+        streamWriter.flush();
+      }
+      super.flushBuffer();
+    }
+  }
+
+  /**
+   * Gets the stream beneath the writer of the current document, after flushing all characters written so far.
+   * This commits the response unless compressed.
+   *
+   * @return  the stream or {@code null} when the document does not write to a stream owned by this page
+   *
+   * @see  #isResponseStreamUsed(com.aoapps.web.framework.WebSiteRequest)
+   */
+  final OutputStream getResponseStream(WebSiteRequest req) throws IOException {
+    ResolvedRequest resolved = RESOLVED_REQUEST_ATTRIBUTE.context(req).get();
+    if (resolved == null || resolved.responseStream == null) {
+      return null;
+    }
+    resolved.responseWriter.flush();
+    return resolved.responseStream;
+  }
+
   /**
    * Prepares for output and returns the {@link OutputStream}.
    * <ol>
-   *   <li>{@linkplain ServletResponse#resetBuffer() clears the output buffer}.</li>
+   *   <li>Sets the {@linkplain #getResponseBufferSize(com.aoapps.web.framework.WebSiteRequest) response buffer size}
+   *       and {@linkplain ServletResponse#resetBuffer() clears the output buffer}, unless already committed.</li>
    *   <li>Sets the {@linkplain ServletResponse#setContentType(java.lang.String) response content type}.</li>
    *   <li>Sets the {@linkplain ServletResponse#setCharacterEncoding(java.lang.String) response character encoding}
    *       to {@linkplain AnyDocument#ENCODING the default <code>UTF-8</code>}.</li>
@@ -471,13 +796,27 @@ public abstract class WebPage extends PageServlet {
    * <p>Both the {@link Serialization} and {@link Doctype} may have been set
    * on the request, and these must be considered in the content type.</p>
    *
+   * <p>The stream is compressed when negotiated with the client.</p>
+   *
    * @see SerializationEE#get(javax.servlet.ServletContext, javax.servlet.http.HttpServletRequest)
    * @see DoctypeEE#get(javax.servlet.ServletContext, javax.servlet.ServletRequest)
    * @see #setHeaders(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)
+   * @see #COMPRESSION_LEVEL_INIT_PARAM
    */
   protected OutputStream getHtmlOutputStream(WebSiteRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    prepareHtmlOutput(req, resp);
+    Compression.CompressingOutputStream compressed = getCompressingOutputStream(req, resp);
+    return (compressed == null) ? resp.getOutputStream() : compressed;
+  }
+
+  /**
+   * Clears the output buffer and sets the content type and additional headers.
+   *
+   * @see  #getHtmlOutputStream(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)
+   */
+  private void prepareHtmlOutput(WebSiteRequest req, HttpServletResponse resp) throws ServletException, IOException {
     // Clear the output buffer
-    resp.resetBuffer();
+    prepareResponseBuffer(req, resp);
     // Set the content type
     ServletUtil.setContentType(
         resp,
@@ -486,21 +825,191 @@ public abstract class WebPage extends PageServlet {
     );
     // Set additional headers
     setHeaders(req, resp);
-    return resp.getOutputStream();
+  }
+
+  /**
+   * Gets the stream compressing the response of this request when compression is negotiated with the client.
+   * A stream already in use by this request is {@linkplain Compression.CompressingOutputStream#reset() reset}
+   * and reused, unless the response is already committed.
+   *
+   * @return  the stream or {@code null} when not compressing
+   */
+  private Compression.CompressingOutputStream getCompressingOutputStream(WebSiteRequest req, HttpServletResponse resp) throws IOException {
+    ResolvedRequest resolved = RESOLVED_REQUEST_ATTRIBUTE.context(req).get();
+    if (
+        // Not dispatched through service, so would not be finished
+        resolved == null
+            // Included responses may not set headers
+            || req.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI) != null
+    ) {
+      return null;
+    }
+    Compression.CompressingOutputStream compressed = resolved.compressed;
+    if (compressed != null) {
+      // Once committed, output already sent cannot be cleared, so the stream is continued as-is
+      if (!resp.isCommitted()) {
+        compressed.reset();
+      }
+    } else {
+      Compression compression = Compression.getInstance(getServletContext());
+      if (compression.isAccepted(req, resp)) {
+        resolved.compressed = compressed = compression.getOutputStream(resp);
+      }
+    }
+    return compressed;
   }
 
   private static final ScopeEE.Request.Attribute<HttpServletResponse> RESPONSE_REQUEST_ATTRIBUTE =
       ScopeEE.REQUEST.attribute(WebPage.class.getName() + ".resp");
 
+  private static final ScopeEE.Request.Attribute<ResolvedRequest> RESOLVED_REQUEST_ATTRIBUTE =
+      ScopeEE.REQUEST.attribute(WebPage.class.getName() + ".resolved");
+
+  /**
+   * The request state resolved once per {@link #service(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)},
+   * shared by {@link #getLastModified(javax.servlet.http.HttpServletRequest)} and the following
+   * {@link #doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)} or
+   * {@link #doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}.
+   * This avoids wrapping the request, which may process uploaded files, more than once.
+   */
+  private static final class ResolvedRequest {
+
+    private final HttpServletRequest httpReq;
+    private WebSiteRequest req;
+    private WebPage page;
+
+    private boolean userResolved;
+
+    /**
+     * Whether {@link #user} was resolved with the real response, which is required by the request handler.
+     * A user resolved without a response, for {@link #getLastModified(javax.servlet.http.HttpServletRequest)},
+     * is only reused by other calls without a response.
+     */
+    private boolean userResolvedWithResponse;
+    private WebSiteUser user;
+
+    private WebSiteUser accessUser;
+    private Boolean canAccess;
+
+    private Compression.CompressingOutputStream compressed;
+
+    /**
+     * The writer of the current document when it writes directly to the response, or {@code null}
+     * when the document is buffered.
+     */
+    private Writer responseWriter;
+
+    /**
+     * The stream {@link #responseWriter} encodes to, when owned by this page, or {@code null}
+     * when the writer is the {@linkplain ServletResponse#getWriter() response writer}.
+     */
+    private OutputStream responseStream;
+
+    /**
+     * The writer encoding to the {@linkplain ServletResponse#getOutputStream() response stream}, kept
+     * until the end of the request so it may be reused and flushed.
+     */
+    private Writer streamWriter;
+
+    private boolean flushedEarly;
+
+    private ResolvedRequest(HttpServletRequest httpReq) {
+      this.httpReq = httpReq;
+    }
+
+    /**
+     * Gets the user, resolving at most once without a response and once with the response.  The request handler
+     * always resolves with its response, since the user implementation may need to update the response, such as
+     * refreshing login cookies.  When login credentials are provided, the user is always resolved.
+     */
+    private WebSiteUser getWebSiteUser(HttpServletResponse resp) throws ServletException, LoginException {
+      if (userResolved && (resp == null || userResolvedWithResponse)) {
+        return user;
+      }
+      WebSiteUser resolvedUser = req.getWebSiteUser(resp);
+      if (req.getParameter(WebSiteRequest.LOGIN_USERNAME) == null) {
+        user = resolvedUser;
+        userResolved = true;
+        userResolvedWithResponse = resp != null;
+        req.setResolvedUser(resolvedUser);
+      }
+      return resolvedUser;
+    }
+
+    private void logout(HttpServletResponse resp) {
+      req.logout(resp);
+      req.clearResolvedUser();
+      userResolved = false;
+      userResolvedWithResponse = false;
+      user = null;
+      accessUser = null;
+      canAccess = null;
+    }
+
+    private boolean canAccess(WebSiteUser currentUser) throws ServletException {
+      if (canAccess == null || accessUser != currentUser) {
+        canAccess = page.canAccess(currentUser);
+        accessUser = currentUser;
+      }
+      return canAccess;
+    }
+  }
+
+  /**
+   * Gets the request state, wrapping the request and resolving the page when first needed.
+   */
+  private ResolvedRequest resolve(HttpServletRequest httpReq) throws ServletException {
+    ResolvedRequest resolved = RESOLVED_REQUEST_ATTRIBUTE.context(httpReq).get();
+    if (resolved == null || resolved.httpReq != httpReq) {
+      // Not dispatched through service or a different request object, resolve without sharing
+      resolved = new ResolvedRequest(httpReq);
+    }
+    if (resolved.req == null) {
+      WebSiteRequest req = getWebSiteRequest(httpReq);
+      resolved.page = getWebPage(getClass(), req);
+      resolved.req = req;
+    }
+    return resolved;
+  }
+
   /**
    * Stores the current response in a request attribute named {@link #RESPONSE_REQUEST_ATTRIBUTE}.
    * This is used by {@link #getLastModified(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}.
+   *
+   * <p>Also stores the state {@linkplain #resolve(javax.servlet.http.HttpServletRequest) resolved} for this request
+   * in a request attribute named {@link #RESOLVED_REQUEST_ATTRIBUTE}, so it is shared between
+   * {@link #getLastModified(javax.servlet.http.HttpServletRequest)} and the request handler.</p>
    */
   @Override
   protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    ResolvedRequest resolved = new ResolvedRequest(req);
     // Store the current response in the request, so can be used for getLastModified
-    try (Attribute.OldValue oldResp = RESPONSE_REQUEST_ATTRIBUTE.context(req).init(resp)) {
-      super.service(req, resp);
+    try (
+        Attribute.OldValue oldResp = RESPONSE_REQUEST_ATTRIBUTE.context(req).init(resp);
+        Attribute.OldValue oldResolved = RESOLVED_REQUEST_ATTRIBUTE.context(req).init(resolved)
+    ) {
+      try {
+        super.service(req, resp);
+      } catch (ServletException | IOException | RuntimeException | Error e) {
+        if (resolved.flushedEarly) {
+          // Too late for an error page, leave the response incomplete
+          logger.log(Level.SEVERE, "Error after head flushed early: " + req.getRequestURI(), e);
+        }
+        if (resolved.compressed != null) {
+          // Do not label the container's error page as compressed
+          resolved.compressed.abort();
+        } else if (resolved.streamWriter != null && !resp.isCommitted()) {
+          // Release the response stream, so the container's error page may use the response writer
+          resp.reset();
+        }
+        throw e;
+      }
+      // Complete any compressed output
+      if (resolved.compressed != null) {
+        resolved.compressed.finish();
+      } else if (resolved.streamWriter != null) {
+        resolved.streamWriter.flush();
+      }
     }
   }
 
@@ -536,12 +1045,13 @@ public abstract class WebPage extends PageServlet {
    */
   @Override
   protected final void doGet(HttpServletRequest httpReq, HttpServletResponse resp) throws ServletException, IOException {
-    WebSiteRequest req = getWebSiteRequest(httpReq);
-    WebPage page = getWebPage(getClass(), req);
+    ResolvedRequest resolved = resolve(httpReq);
+    WebSiteRequest req = resolved.req;
+    WebPage page = resolved.page;
     // Logout when requested
     boolean isLogout = Boolean.parseBoolean(req.getParameter(WebSiteRequest.LOGOUT_REQUESTED));
     if (isLogout) {
-      req.logout(resp);
+      resolved.logout(resp);
     }
 
     if (Boolean.parseBoolean(req.getParameter(WebSiteRequest.LOGIN_REQUESTED))) {
@@ -553,12 +1063,12 @@ public abstract class WebPage extends PageServlet {
     }
     WebSiteUser user;
     try {
-      user = req.getWebSiteUser(resp);
+      user = resolved.getWebSiteUser(resp);
     } catch (LoginException err) {
       page.printLoginForm(page, err, req, resp);
       return;
     }
-    if (!page.canAccess(user)) {
+    if (!resolved.canAccess(user)) {
       page.printUnauthorizedPage(page, req, resp);
       return;
     }
@@ -598,9 +1108,15 @@ public abstract class WebPage extends PageServlet {
     Serialization serialization = getSerialization(req);
     Serialization oldSerialization = SerializationEE.replace(req, serialization);
     try {
-      Doctype oldDoctype = DoctypeEE.replace(req, getDoctype(req));
+      Doctype doctype = getDoctype(req);
+      Doctype oldDoctype = DoctypeEE.replace(req, doctype);
       try {
-        doGet(req, resp, getDocument(req, resp));
+        if (isResponseCacheable(req) && canUseResponseCache(req)) {
+          doGetCached(req, resp, serialization, doctype, getLastModified(req, resp));
+        } else {
+          HttpServletResponse documentResp = getStreamWriterResponse(req, resp);
+          doGet(req, documentResp, getDocument(req, documentResp));
+        }
       } finally {
         DoctypeEE.set(req, oldDoctype);
       }
@@ -609,6 +1125,189 @@ public abstract class WebPage extends PageServlet {
     }
   }
 
+  /**
+   * Determines if the full response of this page may be cached and served directly while
+   * {@link #getLastModified(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)}
+   * is unchanged.  Defaults to {@code false}.
+   *
+   * <p>This is only consulted for anonymous requests.  The output must depend only on the page instance,
+   * {@linkplain WebPageLayout#getName() layout}, {@link Serialization}, and {@link Doctype}.
+   * The size of the cache is configured by {@link #RESPONSE_CACHE_MAX_BYTES_INIT_PARAM}.</p>
+   *
+   * <p>Cacheable responses are sent with a strong <code>ETag</code> of their content, and <code>If-None-Match</code>
+   * is answered with <code>304 Not Modified</code>.  When the last modified time is known, a still-valid tag is
+   * answered without rendering.  When unknown ({@code -1}), the page is rendered but not cached, and the tag only
+   * saves bandwidth.</p>
+   *
+   * @see  #doGet(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse)
+   */
+  protected boolean isResponseCacheable(WebSiteRequest req) throws ServletException {
+    return false;
+  }
+
+  /**
+   * Determines if a {@linkplain #isResponseCacheable(com.aoapps.web.framework.WebSiteRequest) cacheable} response
+   * is kept as a {@linkplain ResponseSnapshots snapshot file} instead of in the {@link ResponseCache}.
+   * Defaults to {@code false}.
+   */
+  boolean isResponseSnapshot(WebSiteRequest req) throws ServletException {
+    return false;
+  }
+
+  /**
+   * Cached responses are only shared between anonymous users whose URLs are not rewritten with a session ID.
+   */
+  private boolean canUseResponseCache(WebSiteRequest req) throws ServletException {
+    if (req.isLoggedIn()) {
+      return false;
+    }
+    HttpSession session = req.getSession(false);
+    return session == null || req.isRequestedSessionIdFromCookie();
+  }
+
+  /**
+   * Serves the response from the {@link ResponseCache} or {@link ResponseSnapshots}, rendering and caching it first
+   * when missing or modified.
+   *
+   * @param  lastModified  the last modified time or {@code -1} when unknown, which bypasses the cache
+   */
+  private void doGetCached(
+      WebSiteRequest req,
+      HttpServletResponse resp,
+      Serialization serialization,
+      Doctype doctype,
+      long lastModified
+  ) throws ServletException, IOException {
+    ServletContext servletContext = getServletContext();
+    Compression compression = Compression.getInstance(servletContext);
+    ResponseCache cache = ResponseCache.getInstance(servletContext);
+    ResponseSnapshots snapshots = isResponseSnapshot(req) ? ResponseSnapshots.getInstance(servletContext) : null;
+    boolean useCache = lastModified != -1 && (snapshots != null ? snapshots.isEnabled() : cache.isEnabled());
+    ResponseCache.Key key = useCache ? new ResponseCache.Key(this, getWebPageLayout(req).getName(), serialization, doctype) : null;
+    if (useCache && snapshots != null) {
+      ResponseSnapshots.Snapshot snapshot = snapshots.get(key, lastModified);
+      if (snapshot != null) {
+        boolean compress = snapshot.getCompressedContent() != null && compression.isCompressed(req, resp, snapshot.getLength());
+        String etag = compress ? ETags.forContentEncoding(snapshot.getETag(), Compression.GZIP) : snapshot.getETag();
+        if (sendNotModified(req, resp, etag)) {
+          return;
+        }
+        prepareHtmlOutput(req, resp);
+        sendContent(resp, etag, compress ? snapshot.getCompressedContent() : snapshot.getContent(), compress);
+        return;
+      }
+      // Render directly to the snapshot file
+      try (ResponseSnapshots.Capture capture = snapshots.capture()) {
+        Writer writer = new OutputStreamWriter(capture.getOutputStream(), AnyDocument.ENCODING);
+        doGet(req, resp, getDocument(req, resp, writer));
+        writer.flush();
+        snapshot = capture.finish(lastModified, compression);
+      }
+      // Session may have been created during rendering
+      boolean stored = canUseResponseCache(req) && snapshots.put(key, snapshot);
+      try {
+        boolean compress = snapshot.getCompressedContent() != null && compression.isCompressed(req, resp, snapshot.getLength());
+        String etag = compress ? ETags.forContentEncoding(snapshot.getETag(), Compression.GZIP) : snapshot.getETag();
+        if (!sendNotModified(req, resp, etag)) {
+          sendContent(resp, etag, compress ? snapshot.getCompressedContent() : snapshot.getContent(), compress);
+        }
+      } finally {
+        if (!stored) {
+          snapshots.release(snapshot);
+        }
+      }
+      return;
+    } else if (useCache) {
+      ResponseCache.Entry entry = cache.get(key, lastModified);
+      if (entry != null) {
+        boolean compress = compression.isCompressed(req, resp, entry.getLength());
+        String etag = compress ? ETags.forContentEncoding(entry.getETag(), Compression.GZIP) : entry.getETag();
+        if (sendNotModified(req, resp, etag)) {
+          return;
+        }
+        byte[] content = compress ? entry.getCompressedContent(compression) : entry.getContent();
+        if (content != null) {
+          prepareHtmlOutput(req, resp);
+          sendContent(resp, etag, content, compress);
+          return;
+        }
+      }
+    }
+    byte[] content;
+    ByteArrayOutputStream buffer = ScratchBuffers.getByteArrayOutputStream();
+    try {
+      Writer writer = new OutputStreamWriter(buffer, AnyDocument.ENCODING);
+      doGet(req, resp, getDocument(req, resp, writer));
+      writer.flush();
+      content = buffer.toByteArray();
+    } finally {
+      ScratchBuffers.release(buffer);
+    }
+    String etag = ETags.fromContent(content);
+    ResponseCache.Entry entry = null;
+    // Session may have been created during rendering
+    if (useCache && canUseResponseCache(req)) {
+      entry = cache.put(key, lastModified, etag, content);
+    }
+    boolean compress = compression.isCompressed(req, resp, content.length);
+    if (compress) {
+      etag = ETags.forContentEncoding(etag, Compression.GZIP);
+    }
+    if (sendNotModified(req, resp, etag)) {
+      return;
+    }
+    if (compress) {
+      byte[] compressed = (entry == null) ? null : entry.getCompressedContent(compression);
+      content = (compressed == null) ? compression.compress(content) : compressed;
+    }
+    sendContent(resp, etag, content, compress);
+  }
+
+  /**
+   * Sends the full content of a cached response, with output already prepared.
+   */
+  private static void sendContent(HttpServletResponse resp, String etag, byte[] content, boolean compressed) throws IOException {
+    resp.setHeader(ETAG_HEADER, etag);
+    if (compressed) {
+      Compression.setContentEncoding(resp);
+    }
+    resp.setContentLength(content.length);
+    resp.getOutputStream().write(content);
+  }
+
+  /**
+   * Sends the full content of a snapshot, with output already prepared.  The content is written in slices directly
+   * from the mapped file.
+   */
+  private static void sendContent(HttpServletResponse resp, String etag, ByteBuffer content, boolean compressed) throws IOException {
+    resp.setHeader(ETAG_HEADER, etag);
+    if (compressed) {
+      Compression.setContentEncoding(resp);
+    }
+    resp.setContentLength(content.remaining());
+    // Not closed, since closing would close the response stream
+    WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+    while (content.hasRemaining()) {
+      out.write(content);
+    }
+  }
+
+  private static final String ETAG_HEADER = "ETag";
+
+  /**
+   * Sends <code>304 Not Modified</code> when the request <code>If-None-Match</code> matches the given entity tag.
+   *
+   * @return  {@code true} when not modified and the response is complete
+   */
+  private static boolean sendNotModified(WebSiteRequest req, HttpServletResponse resp, String etag) {
+    if (ETags.matches(req.getHeader("If-None-Match"), etag)) {
+      resp.setHeader(ETAG_HEADER, etag);
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
   /**
    * The layout is automatically applied to the page, then {@link #doGet(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPageLayout, com.aoapps.html.servlet.FlowContent)}
    * is called.  To not have the layout automatically applied, override this method.
@@ -697,12 +1396,13 @@ public abstract class WebPage extends PageServlet {
    */
   @Override
   protected final void doPost(HttpServletRequest httpReq, HttpServletResponse resp) throws ServletException, IOException {
-    WebSiteRequest req = getWebSiteRequest(httpReq);
-    WebPage page = getWebPage(getClass(), req);
+    ResolvedRequest resolved = resolve(httpReq);
+    WebSiteRequest req = resolved.req;
+    WebPage page = resolved.page;
     // Logout when requested
     boolean isLogout = Boolean.parseBoolean(req.getParameter(WebSiteRequest.LOGOUT_REQUESTED));
     if (isLogout) {
-      req.logout(resp);
+      resolved.logout(resp);
     }
 
     if (Boolean.parseBoolean(req.getParameter(WebSiteRequest.LOGIN_REQUESTED))) {
@@ -714,12 +1414,12 @@ public abstract class WebPage extends PageServlet {
     }
     WebSiteUser user;
     try {
-      user = req.getWebSiteUser(resp);
+      user = resolved.getWebSiteUser(resp);
     } catch (LoginException err) {
       page.printLoginForm(page, err, req, resp);
       return;
     }
-    if (!page.canAccess(user)) {
+    if (!resolved.canAccess(user)) {
       page.printUnauthorizedPage(page, req, resp);
       return;
     }
@@ -787,7 +1487,12 @@ public abstract class WebPage extends PageServlet {
                 List<SearchResult> results = new ArrayList<>();
                 if (words.length > 0) {
                   // Perform the search
-                  target.search(words, req, resp, results, new CharArrayWriter(), new HashSet<>());
+                  CharArrayWriter buffer = ScratchBuffers.getCharArrayWriter();
+                  try {
+                    target.search(words, req, resp, results, buffer, new HashSet<>());
+                  } finally {
+                    ScratchBuffers.release(buffer);
+                  }
                   Collections.sort(results);
                   // Strings.sortObjectsAndFloatDescending(results, 1, 5);
                 }
@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2013, 2015, 2016, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2000-2013, 2015, 2016, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -181,6 +181,8 @@ public abstract class WebPageLayout {
    * {@linkplain #startPage(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPage, com.aoapps.html.servlet.DocumentEE, java.lang.String) Starts the page},
    * invokes the given page body, then
    * {@linkplain #endPage(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPage, com.aoapps.html.servlet.FlowContent) ends the page}.
+   * When {@linkplain WebPage#isFlushHeadEarly(com.aoapps.web.framework.WebSiteRequest) enabled by the page}, the
+   * started page is sent to the client before the page body.
    *
    * <p>Both the {@link Serialization} and {@link Doctype} may have been set
    * on the request, and these must be considered in the HTML generation.</p>
@@ -201,6 +203,7 @@ public abstract class WebPageLayout {
       ServletConsumerE<? super __, Ex> body
   ) throws ServletException, IOException, Ex {
     __ flow = startPage(req, resp, page, document, onload);
+    page.flushHeadEarly(req, resp);
     if (body != null) {
       body.accept(flow);
     }
@@ -211,6 +214,8 @@ public abstract class WebPageLayout {
    * {@linkplain #startPage(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPage, com.aoapps.html.servlet.DocumentEE, java.lang.String) Starts the page},
    * invokes the given page body, then
    * {@linkplain #endPage(com.aoapps.web.framework.WebSiteRequest, javax.servlet.http.HttpServletResponse, com.aoapps.web.framework.WebPage, com.aoapps.html.servlet.FlowContent) ends the page}.
+   * When {@linkplain WebPage#isFlushHeadEarly(com.aoapps.web.framework.WebSiteRequest) enabled by the page}, the
+   * started page is sent to the client before the page body.
    *
    * <p>Both the {@link Serialization} and {@link Doctype} may have been set
    * on the request, and these must be considered in the HTML generation.</p>
@@ -231,6 +236,7 @@ public abstract class WebPageLayout {
       ServletRunnableE<Ex> body
   ) throws ServletException, IOException, Ex {
     FlowContent<?> flow = startPage(req, resp, page, document, onload);
+    page.flushHeadEarly(req, resp);
     if (body != null) {
       body.run();
     }
@@ -1,6 +1,6 @@
 /*
  * ao-web-framework - Legacy servlet-based web framework, superfast and capable but tedious to use.
- * Copyright (C) 2000-2013, 2014, 2015, 2016, 2017, 2018, 2019, 2020, 2021, 2022, 2024  AO Industries, Inc.
+ * Copyright (C) 2000-2013, 2014, 2015, 2016, 2017, 2018, 2019, 2020, 2021, 2022, 2024, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -39,8 +39,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -53,6 +59,8 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.security.auth.login.LoginException;
@@ -128,24 +136,92 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
 
   private static final Logger logger = Logger.getLogger(WebSiteRequest.class.getName());
 
+  /**
+   * The number of hash-prefix buckets at each bucketed level of the upload directory.
+   * Must be a power of two.
+   */
+  private static final int UPLOAD_BUCKETS = 256;
+
+  /**
+   * The number of top-level owner buckets walked by each pass of the clean-up thread.
+   * The entire upload directory is walked once every <code>UPLOAD_BUCKETS / UPLOAD_BUCKETS_PER_SWEEP</code> passes.
+   */
+  private static final int UPLOAD_BUCKETS_PER_SWEEP = 32;
+
   /**
    * Gets the upload directory.
    */
-  // TODO: It would be good form for each user to have their own upload directory by username
   private static File getFileUploadDirectory(ServletContext servletContext) throws FileNotFoundException {
-    File uploadDir = new File(
-        ScopeEE.Application.TEMPDIR.context(servletContext).get(),
-        "uploads"
+    return mkdirs(
+        new File(
+            ScopeEE.Application.TEMPDIR.context(servletContext).get(),
+            "uploads"
+        )
+    );
+  }
+
+  /**
+   * Gets the sharded upload directory for the given owner and file ID, creating it when needed.
+   * The layout is <code>uploads/<i>owner-bucket</i>/<i>owner</i>/<i>id-bucket</i>/<i>id</i></code>, where
+   * the owner is a hash of {@link KeyedWebSiteUser#getUserKey()}, or of the owner itself for other users.  This keeps every directory small, even with
+   * tens of thousands of uploaded files.
+   *
+   * <p>Distinct owners may hash to the same directory.  This is harmless since ownership is enforced by
+   * {@link #getUploadedFile(com.aoapps.web.framework.WebSiteUser, com.aoapps.security.Identifier, javax.servlet.ServletContext)}.</p>
+   */
+  private static File getFileUploadDirectory(ServletContext servletContext, WebSiteUser owner, Identifier id) throws FileNotFoundException {
+    int ownerHash = getOwnerHash(owner);
+    return mkdirs(
+        new File(
+            new File(
+                new File(
+                    getFileUploadDirectory(servletContext),
+                    getBucketName(ownerHash)
+                ),
+                toHex(ownerHash, 8)
+            ),
+            getBucketName(id.hashCode())
+        )
     );
+  }
+
+  private static File mkdirs(File dir) throws FileNotFoundException {
     if (
-        !uploadDir.exists()
-            && !uploadDir.mkdirs()
+        !dir.exists()
+            && !dir.mkdirs()
             // Check exists again, another thread may have created it and interfered with mkdirs
-            && !uploadDir.exists()
+            && !dir.exists()
     ) {
-      throw new FileNotFoundException(uploadDir.getPath());
+      throw new FileNotFoundException(dir.getPath());
+    }
+    return dir;
+  }
+
+  /**
+   * Hashes the owner key.  {@link String#hashCode()} is used because it is specified, and thus stable across restarts.
+   * Files of owners without a key are not restored after a restart, so only need the hash of the owner.
+   */
+  private static int getOwnerHash(WebSiteUser owner) {
+    int h = (owner instanceof KeyedWebSiteUser) ? ((KeyedWebSiteUser) owner).getUserKey().hashCode() : owner.hashCode();
+    // Spread higher bits downward, since the low bits select the bucket
+    return h ^ (h >>> 16);
+  }
+
+  private static String getBucketName(int hash) {
+    return toHex(hash & (UPLOAD_BUCKETS - 1), 2);
+  }
+
+  private static String toHex(int value, int digits) {
+    String hex = Integer.toHexString(value);
+    int len = hex.length();
+    if (len >= digits) {
+      return hex;
+    }
+    StringBuilder sb = new StringBuilder(digits);
+    for (int i = len; i < digits; i++) {
+      sb.append('0');
     }
-    return uploadDir;
+    return sb.append(hex).toString();
   }
 
   private static final SecureRandom secureRandom = new SecureRandom();
@@ -177,54 +253,97 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
     }
   }
 
-  private static class MimeTypeLock {
-    // Empty lock class to help heap profile
-  }
+  /**
+   * Maps every extension listed in <code>mime.types</code> to its type.
+   * Loaded once on first use, then read without locking.
+   */
+  private static final class MimeTypes {
 
-  private static final MimeTypeLock mimeTypeLock = new MimeTypeLock();
-  private static Map<String, String> mimeTypes;
+    private MimeTypes() {
+      // Do not allow instantiation
+    }
 
-  // TODO: Should client-provided content-type take priority?
-  private static String getContentType(Part part, String filename) throws IOException {
-    synchronized (mimeTypeLock) {
-      if (mimeTypes == null) {
-        Map<String, String> newMap = new HashMap<>();
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(WebSiteRequest.class.getResourceAsStream("mime.types")))) {
-          String line;
-          while ((line = in.readLine()) != null) {
-            if (line.length() > 0) {
-              if (line.charAt(0) != '#') {
-                String[] words = Strings.split(line);
-                if (words.length > 0) {
-                  String type = words[0];
-                  for (int c = 1; c < words.length; c++) {
-                    newMap.put(words[1], type);
-                  }
+    private static final Map<String, String> mimeTypes;
+
+    static {
+      Map<String, String> newMap = new HashMap<>();
+      try (
+          BufferedReader in = new BufferedReader(
+              new InputStreamReader(
+                  WebSiteRequest.class.getResourceAsStream("mime.types"),
+                  StandardCharsets.UTF_8
+              )
+          )
+      ) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.length() > 0) {
+            if (line.charAt(0) != '#') {
+              String[] words = Strings.split(line);
+              if (words.length > 0) {
+                String type = words[0];
+                for (int c = 1; c < words.length; c++) {
+                  newMap.put(words[c].toLowerCase(Locale.ROOT), type);
                 }
               }
             }
           }
         }
-        mimeTypes = newMap;
-      }
-      String type = mimeTypes.get(getExtension(filename).toLowerCase());
-      if (type != null) {
-        return type;
+      } catch (IOException e) {
+        throw new ExceptionInInitializerError(e);
       }
-      return part.getContentType();
+      mimeTypes = Collections.unmodifiableMap(newMap);
+    }
+  }
+
+  // TODO: Should client-provided content-type take priority?
+  private static String getContentType(Part part, String filename) {
+    String type = MimeTypes.mimeTypes.get(getExtension(filename).toLowerCase(Locale.ROOT));
+    if (type != null) {
+      return type;
     }
+    return part.getContentType();
   }
 
   // TODO: One ConcurrentMap per ServletContext
-  private static final Map<Identifier, UploadedFile> uploadedFiles = new HashMap<>();
-
-  private Identifier getNextId() {
-    synchronized (uploadedFiles) {
-      while (true) {
-        Identifier id = new Identifier(getSecureRandom());
-        if (!uploadedFiles.containsKey(id)) {
-          uploadedFiles.put(id, null);
-          return id;
+  private static final ConcurrentMap<Identifier, UploadedFile> uploadedFiles = new ConcurrentHashMap<>();
+
+  private static class UploadedFilesLock {
+    // Empty lock class to help heap profile
+  }
+
+  /**
+   * Guards the journal and the clean-up thread.  Not needed for access to {@link #uploadedFiles} itself.
+   */
+  private static final UploadedFilesLock uploadedFilesLock = new UploadedFilesLock();
+
+  /**
+   * Reserves a new ID by registering the uploaded file under it, then atomically creates its empty storage file.
+   * The entry is registered before its content is written, so the clean-up thread will not consider the file orphaned.
+   */
+  private UploadedFile reserveUploadedFile(WebSiteUser user, String filename, String contentType) throws IOException {
+    ServletContext servletContext = getServletContext();
+    while (true) {
+      Identifier id = new Identifier(getSecureRandom());
+      UploadedFile uf = new UploadedFile(
+          filename,
+          new File(getFileUploadDirectory(servletContext, user, id), id.toString()),
+          user,
+          contentType
+      );
+      if (uploadedFiles.putIfAbsent(id, uf) == null) {
+        try {
+          Files.createFile(uf.getStorageFile().toPath());
+          return uf;
+        } catch (FileAlreadyExistsException e) {
+          // Left from before a restart, try another ID
+          uploadedFiles.remove(id, uf);
+        } catch (NoSuchFileException e) {
+          // Empty directory deleted by the clean-up thread, create it again
+          uploadedFiles.remove(id, uf);
+        } catch (IOException | RuntimeException | Error e) {
+          uploadedFiles.remove(id, uf);
+          throw e;
         }
       }
     }
@@ -233,10 +352,51 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
   // TODO: Consider using ao-concurrent to avoid keeping a thread sleeping.
   private static volatile Thread uploadedFileCleanup;
 
+  /**
+   * The journal persisting {@link #uploadedFiles} through restarts or {@code null} when not opened.
+   */
+  // Only modified while holding uploadedFilesLock
+  private static volatile UploadedFileJournal uploadedFileJournal;
+
+  /**
+   * Restores the uploaded files from the journal, then opens the journal for new entries.
+   */
+  private static void openUploadedFileJournal(ServletContext servletContext) {
+    synchronized (uploadedFilesLock) {
+      if (uploadedFileJournal == null) {
+        try {
+          uploadedFileJournal = UploadedFileJournal.open(getFileUploadDirectory(servletContext), uploadedFiles);
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Unable to open uploaded file journal, uploads will not survive restart", e);
+        }
+        if (!uploadedFiles.isEmpty()) {
+          startUploadedFileCleanup(servletContext);
+        }
+      }
+    }
+  }
+
+  /**
+   * Journals a {@linkplain #reserveUploadedFile(com.aoapps.web.framework.WebSiteUser, java.lang.String, java.lang.String) reserved}
+   * uploaded file once its content has been written.
+   */
   private static void addUploadedFile(UploadedFile uf, final ServletContext servletContext) {
-    synchronized (uploadedFiles) {
-      uploadedFiles.put(uf.getId(), uf);
+    uf.setCompleted();
+    UploadedFileJournal journal = uploadedFileJournal;
+    if (journal != null && uf.isJournaled()) {
+      try {
+        journal.add(uf);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to journal uploaded file, it will not survive restart: " + uf.getStorageFile(), e);
+      }
+    }
+    if (uploadedFileCleanup == null) {
+      startUploadedFileCleanup(servletContext);
+    }
+  }
 
+  private static void startUploadedFileCleanup(final ServletContext servletContext) {
+    synchronized (uploadedFilesLock) {
       if (uploadedFileCleanup == null) {
         uploadedFileCleanup = new Thread() {
           @Override
@@ -248,65 +408,45 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
                 sleep(10L * 60 * 1000);
 
                 // Remove the expired entries
-                synchronized (uploadedFiles) {
-                  Iterator<Identifier> iter = uploadedFiles.keySet().iterator();
-                  while (iter.hasNext()) {
-                    Identifier id = iter.next();
-                    UploadedFile uf = uploadedFiles.get(id);
-                    if (uf == null) {
-                      iter.remove();
-                    } else {
-                      long timeSince = System.currentTimeMillis() - uf.getLastAccessed();
-                      if (timeSince < 0 || timeSince >= (60L * 60 * 1000)) {
-                        File file = uf.getStorageFile();
-                        if (file.exists()) {
-                          try {
-                            Files.delete(file.toPath());
-                          } catch (IOException e) {
-                            logger.log(
-                                Level.SEVERE,
-                                "file.getPath()=" + file.getPath(),
-                                e
-                            );
-                          }
+                synchronized (uploadedFilesLock) {
+                  for (Map.Entry<Identifier, UploadedFile> entry : uploadedFiles.entrySet()) {
+                    Identifier id = entry.getKey();
+                    UploadedFile uf = entry.getValue();
+                    long timeSince = System.currentTimeMillis() - uf.getLastAccessed();
+                    if (
+                        (timeSince < 0 || timeSince >= (60L * 60 * 1000))
+                            && uploadedFiles.remove(id, uf)
+                    ) {
+                      File file = uf.getStorageFile();
+                      if (file.exists()) {
+                        try {
+                          Files.delete(file.toPath());
+                        } catch (IOException e) {
+                          logger.log(
+                              Level.SEVERE,
+                              "file.getPath()=" + file.getPath(),
+                              e
+                          );
                         }
-                        iter.remove();
+                      }
+                      if (uploadedFileJournal != null && uf.isJournaled()) {
+                        uploadedFileJournal.remove(id);
                       }
                     }
                   }
-                  // Delete the files that do not have an uploadedFile entry and are at least two hours old
+                  if (uploadedFileJournal != null) {
+                    uploadedFileJournal.compactIfNeeded(uploadedFiles.values());
+                  }
+                  // Delete the files that do not have an uploadedFile entry and are at least two hours old,
+                  // walking only a slice of the owner buckets on each pass
                   File dir = getFileUploadDirectory(servletContext);
-                  String[] list = dir.list();
-                  if (list != null) {
-                    for (String filename : list) {
-                      File file = new File(dir, filename);
-                      long fileAge = System.currentTimeMillis() - file.lastModified();
-                      if (
-                          fileAge < (-2L * 60 * 60 * 1000)
-                              || fileAge > (2L * 60 * 60 * 1000)
-                      ) {
-                        boolean found = false;
-                        iter = uploadedFiles.keySet().iterator();
-                        while (iter.hasNext()) {
-                          UploadedFile uf = uploadedFiles.get(iter.next());
-                          if (uf.getStorageFile().getAbsolutePath().equals(file.getAbsolutePath())) {
-                            found = true;
-                            break;
-                          }
-                        }
-                        if (!found) {
-                          try {
-                            Files.delete(file.toPath());
-                          } catch (IOException e) {
-                            logger.log(
-                                Level.SEVERE,
-                                "file.getPath()=" + file.getPath(),
-                                e
-                            );
-                          }
-                        }
-                      }
-                    }
+                  if (nextSweepBucket == 0) {
+                    // Files from the flat layout used before sharding
+                    deleteOrphanedUploads(dir, 0);
+                  }
+                  for (int i = 0; i < UPLOAD_BUCKETS_PER_SWEEP; i++) {
+                    deleteOrphanedUploads(new File(dir, getBucketName(nextSweepBucket)), 2);
+                    nextSweepBucket = (nextSweepBucket + 1) & (UPLOAD_BUCKETS - 1);
                   }
                 }
               } catch (ThreadDeath td) {
@@ -335,30 +475,124 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
     }
   }
 
+  /**
+   * The next top-level owner bucket to be walked by the clean-up thread.
+   */
+  // Only accessed while holding uploadedFilesLock
+  private static int nextSweepBucket;
+
+  /**
+   * Checks if a file or directory was last modified outside the two hour window in which uploads are kept
+   * without an uploadedFile entry.
+   */
+  private static boolean isOrphanAge(File file) {
+    long age = System.currentTimeMillis() - file.lastModified();
+    return
+        age < (-2L * 60 * 60 * 1000)
+            || age > (2L * 60 * 60 * 1000);
+  }
+
+  /**
+   * Deletes the files that do not have an uploadedFile entry and are at least two hours old.
+   * Only files named as an {@link Identifier} are considered.  The owner and ID bucket directories left
+   * empty are also deleted, unless modified within the last two hours, when a new upload may be using them.
+   *
+   * @param  depth  the number of directory levels below <code>dir</code> before the uploaded files
+   */
+  private static void deleteOrphanedUploads(File dir, int depth) {
+    assert Thread.holdsLock(uploadedFilesLock);
+    String[] list = dir.list();
+    if (list != null) {
+      for (String filename : list) {
+        File file = new File(dir, filename);
+        if (depth > 0) {
+          if (file.isDirectory()) {
+            // Checked before deleting its files, which modifies the directory
+            boolean oldDirectory = isOrphanAge(file);
+            deleteOrphanedUploads(file, depth - 1);
+            if (oldDirectory) {
+              String[] remaining = file.list();
+              if (remaining != null && remaining.length == 0) {
+                try {
+                  Files.delete(file.toPath());
+                } catch (DirectoryNotEmptyException e) {
+                  // Used by a new upload
+                } catch (IOException e) {
+                  logger.log(
+                      Level.SEVERE,
+                      "file.getPath()=" + file.getPath(),
+                      e
+                  );
+                }
+              }
+            }
+          }
+        } else if (file.isFile() && !filename.startsWith(UploadedFileJournal.FILENAME)) {
+          if (isOrphanAge(file)) {
+            Identifier id;
+            try {
+              id = new Identifier(filename);
+            } catch (IllegalArgumentException e) {
+              // Not an uploaded file
+              continue;
+            }
+            if (!uploadedFiles.containsKey(id)) {
+              try {
+                Files.delete(file.toPath());
+              } catch (IOException e) {
+                logger.log(
+                    Level.SEVERE,
+                    "file.getPath()=" + file.getPath(),
+                    e
+                );
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
   private static void stopUploadedFileCleanup() {
-    synchronized (uploadedFiles) {
+    synchronized (uploadedFilesLock) {
       Thread t = uploadedFileCleanup;
       if (t != null) {
         uploadedFileCleanup = null;
         t.interrupt();
       }
+      UploadedFileJournal journal = uploadedFileJournal;
+      if (journal != null) {
+        uploadedFileJournal = null;
+        try {
+          journal.close();
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, null, e);
+        }
+      }
     }
   }
 
   /**
-   * Shuts-down background clean-up thread on application stop.
+   * Restores uploaded files on application start.
+   * Shuts-down background clean-up thread and releases the response cache on application stop.
    */
-  @WebListener("Shuts-down background clean-up thread on application stop.")
+  @WebListener("Restores uploaded files on application start, shuts-down background clean-up thread and releases the response cache, class last modified times, and directory trackers on application stop.")
   public static class Initializer implements ServletContextListener {
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
-      // Nothing to do
+      openUploadedFileJournal(sce.getServletContext());
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
       stopUploadedFileCleanup();
+      ResponseCache.destroy(sce.getServletContext());
+      ClassLastModified.destroy(sce.getServletContext());
+      DirectoryLastModified.stopAll();
+      Compression.destroy(sce.getServletContext());
+      ContentCache.destroy(sce.getServletContext());
+      ResponseSnapshots.destroy(sce.getServletContext());
     }
   }
 
@@ -366,6 +600,9 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
   private final HttpServletRequest req;
   private List<UploadedFile> reqUploadedFiles;
 
+  private boolean hasUrlSettings;
+  private boolean hasUrlSettingsDone;
+
   private boolean isLynx;
   private boolean isLynxDone;
 
@@ -375,6 +612,12 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
   private boolean isLinux;
   private boolean isLinuxDone;
 
+  /**
+   * The user resolved by {@link WebPage} for this request, reused by {@link #isLoggedIn()}.
+   */
+  private WebSiteUser resolvedUser;
+  private boolean userResolved;
+
   /**
    * Creates a new website request wrapper.
    */
@@ -396,30 +639,29 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
             // Determine the authentication info
             WebSiteUser user = getWebSiteUser(null);
             if (user != null) {
-              File uploadDirectory = getFileUploadDirectory(getServletContext());
               keepFiles = true;
               // Create an UploadedFile for each file in the MultipartRequest
               reqUploadedFiles = new ArrayList<>();
               for (Part part : req.getParts()) {
-                // Get a copy of the file in our upload directory
-                File file;
-                while (true) {
-                  File newFile = new File(uploadDirectory, String.valueOf(getNextId()));
-                  if (!newFile.exists()) {
-                    file = newFile;
-                    break;
-                  }
-                }
-                part.write(file.getCanonicalPath());
-
                 String filename = part.getName();
-                // Not necessary since there is a clean-up thread: file.deleteOnExit(); // JDK implementation builds an ever-growing set
-                UploadedFile uf = new UploadedFile(
-                    HttpServletUtil.getSubmittedFileName(part),
-                    file,
+                UploadedFile uf = reserveUploadedFile(
                     user,
+                    HttpServletUtil.getSubmittedFileName(part),
                     getContentType(part, filename) // TODO: Should this be the submitted filename?
                 );
+                // Get a copy of the file in our upload directory, replacing the reserved empty file.
+                // Not using part.write, since some containers fail when the destination already exists.
+                File file = uf.getStorageFile();
+                try (InputStream in = part.getInputStream()) {
+                  Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException | RuntimeException | Error e) {
+                  uploadedFiles.remove(uf.getId(), uf);
+                  Files.deleteIfExists(file.toPath());
+                  throw e;
+                }
+                // Copied, so release the container's temporary storage now
+                part.delete();
+                // Not necessary since there is a clean-up thread: file.deleteOnExit(); // JDK implementation builds an ever-growing set
                 addUploadedFile(uf, sourcePage.getServletContext());
                 reqUploadedFiles.add(uf);
               }
@@ -512,18 +754,59 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
    *                 This does not support multiple values, only the first is used.
    */
   public String getUrlForClass(String classname, URIParameters params, String fragment) throws ServletException {
+    String url = getUrl(loadWebPageClass(classname), params);
+    if (fragment != null) {
+      url += fragment;
+    }
+    return url;
+  }
+
+  private static Class<? extends WebPage> loadWebPageClass(String classname) throws ServletException {
     try {
-      Class<? extends WebPage> clazz = Class.forName(classname).asSubclass(WebPage.class);
-      String url = getUrl(clazz, params);
-      if (fragment != null) {
-        url += fragment;
-      }
-      return url;
+      return Class.forName(classname).asSubclass(WebPage.class);
     } catch (ClassNotFoundException err) {
       throw new ServletException("Unable to load class: " + classname, err);
     }
   }
 
+  /**
+   * Splits a class name with optional parameters and fragment.
+   *
+   * @return  the class name, the parameters or {@code null}, and the fragment or {@code null}
+   */
+  private static String[] splitClassAndParamsFragment(String classAndParamsFragment) {
+    String className;
+    String params;
+    String fragment;
+    int pos = URIParser.getPathEnd(classAndParamsFragment);
+    if (pos >= classAndParamsFragment.length()) {
+      className = classAndParamsFragment;
+      params = null;
+      fragment = null;
+    } else {
+      className = classAndParamsFragment.substring(0, pos);
+      if (classAndParamsFragment.charAt(pos) == '?') {
+        int hashPos = classAndParamsFragment.indexOf('#', pos + 1);
+        if (hashPos == -1) {
+          params = classAndParamsFragment.substring(pos + 1);
+          fragment = null;
+        } else {
+          params = classAndParamsFragment.substring(pos + 1, hashPos);
+          fragment = classAndParamsFragment.substring(hashPos + 1);
+        }
+      } else {
+        assert classAndParamsFragment.charAt(pos) == '#';
+        params = null;
+        fragment = classAndParamsFragment.substring(pos + 1);
+      }
+    }
+    return new String[]{className, params, fragment};
+  }
+
+  private static URIParameters toParameters(String params) {
+    return (params == null || params.isEmpty()) ? null : new URIParametersMap(params);
+  }
+
   /**
    * {@linkplain #getUrlForClass(java.lang.String, com.aoapps.net.URIParameters, java.lang.String) Gets the URL}.  Including:
    * <ol>
@@ -577,36 +860,35 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
    * Parameters and fragment should already be URL encoded but not XML encoded.
    */
   public String getUrlForClass(String classAndParamsFragment) throws ServletException {
-    String className;
-    String params;
-    String fragment;
-    int pos = URIParser.getPathEnd(classAndParamsFragment);
-    if (pos >= classAndParamsFragment.length()) {
-      className = classAndParamsFragment;
-      params = null;
-      fragment = null;
-    } else {
-      className = classAndParamsFragment.substring(0, pos);
-      if (classAndParamsFragment.charAt(pos) == '?') {
-        int hashPos = classAndParamsFragment.indexOf('#', pos + 1);
-        if (hashPos == -1) {
-          params = classAndParamsFragment.substring(pos + 1);
-          fragment = null;
-        } else {
-          params = classAndParamsFragment.substring(pos + 1, hashPos);
-          fragment = classAndParamsFragment.substring(hashPos + 1);
-        }
-      } else {
-        assert classAndParamsFragment.charAt(pos) == '#';
-        params = null;
-        fragment = classAndParamsFragment.substring(pos + 1);
-      }
+    String[] split = splitClassAndParamsFragment(classAndParamsFragment);
+    return getUrlForClass(split[0], toParameters(split[1]), split[2]);
+  }
+
+  /**
+   * Gets the page that {@link #getUrlForClass(java.lang.String)} links to.
+   * The page depends only on the class and parameters, not on this request.
+   */
+  WebPage getWebPageForClass(String classAndParamsFragment) throws ServletException {
+    String[] split = splitClassAndParamsFragment(classAndParamsFragment);
+    return WebPage.getWebPage(sourcePage.getServletContext(), loadWebPageClass(split[0]), toParameters(split[1]));
+  }
+
+  /**
+   * Determines if the URL {@linkplain #getUrl(com.aoapps.web.framework.WebPage, com.aoapps.net.URIParameters) to the given page}
+   * is the same for all requests: the page adds no {@linkplain WebPage#getUrlParams(com.aoapps.web.framework.WebSiteRequest) parameters}
+   * for this request, and this request adds no {@linkplain #appendSettings(java.util.Set, boolean, java.lang.StringBuilder) settings}.
+   */
+  boolean isUrlRequestIndependent(WebPage page) throws ServletException {
+    if (page.getUrlParams(this) != null) {
+      return false;
     }
-    return getUrlForClass(
-        className,
-        (params == null || params.isEmpty()) ? null : new URIParametersMap(params),
-        fragment
-    );
+    if (!hasUrlSettingsDone) {
+      StringBuilder url = new StringBuilder();
+      appendSettings(new HashSet<>(), false, url);
+      hasUrlSettings = url.length() > 0;
+      hasUrlSettingsDone = true;
+    }
+    return !hasUrlSettings;
   }
 
   /**
@@ -929,29 +1211,32 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
    * @exception  SecurityException  if the ID is not assigned to the person logged in
    */
   public static UploadedFile getUploadedFile(WebSiteUser owner, Identifier id, ServletContext context) throws SecurityException {
-    synchronized (uploadedFiles) {
-      UploadedFile uf = uploadedFiles.get(id);
-      if (uf != null) {
-        if (uf.getOwner().equals(owner)) {
-          return uf;
-        } else {
-          logger.log(
-              Level.SEVERE,
-              "UploadedFile found, but owner doesn''t match: uf.getOwner()=\"{0}\", owner=\"{1}\".",
-              new Object[]{
-                  uf.getOwner(),
-                  owner
-              }
-          );
-        }
+    UploadedFile uf = uploadedFiles.get(id);
+    if (uf != null) {
+      if (uf.isOwner(owner)) {
+        return uf;
+      } else {
+        logger.log(
+            Level.SEVERE,
+            "UploadedFile found, but owner doesn''t match: uf.getOwner()=\"{0}\", owner=\"{1}\".",
+            new Object[]{
+                uf.getOwner(),
+                owner
+            }
+        );
       }
-      return null;
     }
+    return null;
   }
 
   /**
    * Gets the person who is logged in or <code>null</code> if no login is performed for this request.
    *
+   * <p>When dispatched through {@link WebPage}, this is called at most once without a response, for
+   * {@link WebPage#getLastModified(javax.servlet.http.HttpServletRequest)}, and once with the response of the request
+   * handler, unless login credentials are provided.  The most recently resolved user is also used by
+   * {@link #isLoggedIn()}.</p>
+   *
    * @param  resp  The current response or {@code null} when invoked from {@link WebPage#getLastModified(javax.servlet.http.HttpServletRequest)}
    *
    * @exception LoginException if an invalid login attempt is made or the user credentials are not found
@@ -960,10 +1245,30 @@ public class WebSiteRequest extends HttpServletRequestWrapper {
     return null;
   }
 
+  /**
+   * Records the user resolved by {@link WebPage}, so it is not resolved again by {@link #isLoggedIn()}.
+   */
+  void setResolvedUser(WebSiteUser user) {
+    resolvedUser = user;
+    userResolved = true;
+  }
+
+  /**
+   * Forgets the resolved user, such as after logout.
+   */
+  void clearResolvedUser() {
+    resolvedUser = null;
+    userResolved = false;
+  }
+
   /**
    * Determines if the user is currently logged in.
+   * Uses the user already resolved for this request by {@link WebPage}, when available.
    */
   public boolean isLoggedIn() throws ServletException {
+    if (userResolved) {
+      return resolvedUser != null;
+    }
     try {
       return getWebSiteUser(null) != null;
     } catch (LoginException err) {